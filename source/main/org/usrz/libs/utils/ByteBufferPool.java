@@ -0,0 +1,253 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A pool of <em>direct</em> {@link ByteBuffer}s organized in power-of-two
+ * <em>size classes</em>, from <em>minSize</em> up to <em>maxSize</em>.
+ * <p>
+ * Buffers for each size class are sliced out of large off-heap
+ * <em>slabs</em> and kept in a shared {@link ObjectPool}, fronted by a small
+ * per-thread <em>magazine</em> so that most borrows and returns never touch
+ * the shared pools.
+ * <p>
+ * Buffers {@linkplain #allocate(int) allocated} have their limit set to the
+ * requested size, and are {@linkplain ByteBuffer#clear() cleared} when
+ * {@linkplain #release(ByteBuffer) released}. Requests larger than
+ * <em>maxSize</em> are satisfied with plain unpooled direct buffers.
+ * <p>
+ * Each slice carries its own state, flipped when allocated and released, so
+ * that buffers not allocated by this pool, or released twice, are never
+ * pooled (and handed out to more than one caller). Slices are looked up in
+ * a per-size-class table, written only when slicing, and referenced weakly
+ * so that buffers never released can still be garbage collected.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class ByteBufferPool {
+
+    private final ThreadLocal<Magazine[]> magazines;
+    private final SizeClass[] classes;
+    private final int minShift;
+    private final int maxSize;
+
+    /**
+     * Create a {@link ByteBufferPool} with buffers from 256 bytes to 64 KB
+     * sliced from 1 MB slabs, pooling up to 256 buffers per size class and
+     * keeping up to 16 buffers per class in each thread's magazine.
+     */
+    public ByteBufferPool() {
+        this(256, 65536, 1048576, 256, 16);
+    }
+
+    /**
+     * Create a new {@link ByteBufferPool}.
+     *
+     * @param minSize The size of the smallest buffers, a power of two.
+     * @param maxSize The size of the largest pooled buffers, a power of two.
+     * @param slabSize The size of each slab, at least <em>maxSize</em>.
+     * @param maxPooled The maximum number of shared buffers per size class.
+     * @param magazineSize The number of buffers per size class kept in each
+     *                     thread's magazine, or <em>zero</em> to disable.
+     */
+    public ByteBufferPool(int minSize, int maxSize, int slabSize, int maxPooled, int magazineSize) {
+        if ((minSize < 1) || (Integer.bitCount(minSize) != 1)) throw new IllegalArgumentException("Invalid minimum size " + minSize);
+        if ((maxSize < minSize) || (Integer.bitCount(maxSize) != 1)) throw new IllegalArgumentException("Invalid maximum size " + maxSize);
+        if (slabSize < maxSize) throw new IllegalArgumentException("Invalid slab size " + slabSize);
+        if (maxPooled < 1) throw new IllegalArgumentException("Invalid pooled buffers " + maxPooled);
+        if (magazineSize < 0) throw new IllegalArgumentException("Invalid magazine size " + magazineSize);
+
+        minShift = Integer.numberOfTrailingZeros(minSize);
+        classes = new SizeClass[Integer.numberOfTrailingZeros(maxSize) - minShift + 1];
+        for (int x = 0; x < classes.length; x ++) {
+            classes[x] = new SizeClass(minSize << x, slabSize, maxPooled);
+        }
+
+        magazines = ThreadLocal.withInitial(() -> {
+            final Magazine[] magazines = new Magazine[classes.length];
+            for (int x = 0; x < magazines.length; x ++) magazines[x] = new Magazine(magazineSize);
+            return magazines;
+        });
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Allocate a direct {@link ByteBuffer} with at least the specified
+     * capacity, and its limit set to the specified size.
+     */
+    public ByteBuffer allocate(int size) {
+        if (size < 0) throw new IllegalArgumentException("Invalid size " + size);
+        if (size > maxSize) return ByteBuffer.allocateDirect(size);
+
+        final int index = index(size);
+        final ByteBuffer buffer = magazines.get()[index].poll();
+        final ByteBuffer result = buffer != null ? buffer : classes[index].pool.borrowObject();
+        classes[index].slice(result).allocate();
+        result.limit(size);
+        return result;
+    }
+
+    /**
+     * Release a {@link ByteBuffer} previously {@linkplain #allocate(int)
+     * allocated} by this pool, making it available for reuse.
+     * <p>
+     * The buffer must not be used by the caller after it was released.
+     * Unpooled (larger than <em>maxSize</em>) buffers are simply forgotten.
+     *
+     * @throws IllegalArgumentException If the buffer was not allocated by
+     *                                  this pool, or was already released.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (buffer.isDirect() && (buffer.capacity() > maxSize)) return;
+
+        final int index = Integer.numberOfTrailingZeros(buffer.capacity()) - minShift;
+        final Slice slice = (buffer.isDirect() && (index >= 0) && (index < classes.length)
+                             && (buffer.capacity() == classes[index].bufferSize)) ?
+                                     classes[index].slice(buffer) : null;
+
+        if ((slice == null) || (! slice.release()))
+            throw new IllegalArgumentException("Buffer not allocated by this pool, or already released");
+
+        buffer.clear();
+        if (magazines.get()[index].offer(buffer)) return;
+        classes[index].pool.returnObject(buffer);
+    }
+
+    /* ====================================================================== */
+
+    private int index(int size) {
+        if (size <= 1) return 0;
+        final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, shift - minShift);
+    }
+
+    /* ====================================================================== */
+
+    private static final class SizeClass {
+
+        private final ObjectPool<ByteBuffer> pool;
+        private final int bufferSize;
+        private final int slabSize;
+        private volatile Slice[] slices = new Slice[16];
+        private int sliced;
+        private ByteBuffer slab;
+
+        private SizeClass(int bufferSize, int slabSize, int maxPooled) {
+            this.pool = new ObjectPool<>(maxPooled, this::slice);
+            this.slabSize = slabSize - (slabSize % bufferSize);
+            this.bufferSize = bufferSize;
+        }
+
+        private synchronized ByteBuffer slice() {
+            if ((slab == null) || (slab.remaining() < bufferSize)) {
+                slab = ByteBuffer.allocateDirect(slabSize);
+            }
+
+            final int position = slab.position();
+            slab.limit(position + bufferSize);
+            final ByteBuffer buffer = slab.slice();
+            slab.limit(slabSize).position(position + bufferSize);
+
+            /* Keep a free slot at least every four, rebuilding without cleared slices */
+            Slice[] slices = this.slices;
+            if (++ sliced > (slices.length >> 1) + (slices.length >> 2)) {
+                sliced = 1;
+                for (Slice slice: slices) if ((slice != null) && (slice.get() != null)) sliced ++;
+                final Slice[] rebuilt = new Slice[Math.max(16, Integer.highestOneBit(sliced) << 2)];
+                for (Slice slice: slices) if ((slice != null) && (slice.get() != null)) insert(rebuilt, slice);
+                this.slices = slices = rebuilt;
+            }
+
+            /* Slices are published to other threads along with their buffers */
+            insert(slices, new Slice(buffer));
+            return buffer;
+        }
+
+        private Slice slice(ByteBuffer buffer) {
+            final Slice[] slices = this.slices;
+            final int mask = slices.length - 1;
+            for (int x = hash(buffer) & mask; ; x = (x + 1) & mask) {
+                final Slice slice = slices[x];
+                if (slice == null) return null;
+                if (slice.get() == buffer) return slice;
+            }
+        }
+
+        private static void insert(Slice[] slices, Slice slice) {
+            final int mask = slices.length - 1;
+            int x = hash(slice.get()) & mask;
+            while (slices[x] != null) x = (x + 1) & mask;
+            slices[x] = slice;
+        }
+
+        private static int hash(ByteBuffer buffer) {
+            final int hash = System.identityHashCode(buffer) * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* A slice of a slab, and whether it is currently allocated or not */
+    private static final class Slice extends WeakReference<ByteBuffer> {
+
+        private static final AtomicIntegerFieldUpdater<Slice> ALLOCATED = AtomicIntegerFieldUpdater.newUpdater(Slice.class, "allocated");
+
+        private volatile int allocated;
+
+        private Slice(ByteBuffer buffer) {
+            super(buffer);
+        }
+
+        private void allocate() {
+            allocated = 1;
+        }
+
+        private boolean release() {
+            return ALLOCATED.compareAndSet(this, 1, 0);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class Magazine {
+
+        private final ArrayDeque<ByteBuffer> buffers;
+        private final int capacity;
+
+        private Magazine(int capacity) {
+            this.buffers = new ArrayDeque<>(Math.max(1, capacity));
+            this.capacity = capacity;
+        }
+
+        private ByteBuffer poll() {
+            return buffers.pollFirst();
+        }
+
+        private boolean offer(ByteBuffer buffer) {
+            if (buffers.size() >= capacity) return false;
+            buffers.offerFirst(buffer);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A simple <em>keyed object pool</em>, lazily creating an {@link ObjectPool}
+ * for each key, each keeping up to <em>maxSizePerKey</em> instances.
+ * <p>
+ * The total number of idle instances across all keys is capped at
+ * <em>maxIdle</em>: when a {@linkplain #returnObject(Object, Object) return}
+ * exceeds this limit, the oldest idle instance of the <em>least recently
+ * used</em> key is evicted. Keys without idle instances are forgotten, so
+ * memory stays bounded regardless of the number of keys used.
+ * <p>
+ * Keys never contend with each other: each key's instances are kept in
+ * their own lock-free {@link ObjectPool}, while recency is approximated
+ * with a <em>second chance</em> queue of keys, where keys used since they
+ * were last considered for eviction are skipped once.
+ * <p>
+ * Note that when a key has no idle instances, this pool will <em>always</em>
+ * call the configured {@link Function} to create new instances.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <K> The type of keys used by this {@link KeyedObjectPool}
+ * @param <T> The type of objects stored by this {@link KeyedObjectPool}
+ */
+public class KeyedObjectPool<K, T> {
+
+    /* The state of a key's pool that was discarded */
+    private static final int CLOSED = -1;
+
+    private final ConcurrentHashMap<K, KeyPool> pools = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<KeyPool> order = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger discarded = new AtomicInteger();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final Function<K, T> factory;
+    private final Predicate<T> predicate;
+    private final int maxSizePerKey;
+    private final int maxIdle;
+
+    /**
+     * Create a {@link KeyedObjectPool} containing up to the specified maxmum
+     * number of instances per key and overall.
+     * <p>
+     * Objects {@linkplain #returnObject(Object, Object) returned} will be
+     * added back to the pool if <em>not null</em>.
+     *
+     * @param maxSizePerKey The maximum number of instances to keep per key.
+     * @param maxIdle The maximum number of instances to keep for all keys.
+     * @param factory A {@link Function} to create new instances for a key.
+     */
+    public KeyedObjectPool(int maxSizePerKey, int maxIdle, Function<K, T> factory) {
+        this(maxSizePerKey, maxIdle, factory, (instance) -> true);
+    }
+
+    /**
+     * Create a {@link KeyedObjectPool} containing up to the specified maxmum
+     * number of instances per key and overall.
+     * <p>
+     * Objects {@linkplain #returnObject(Object, Object) returned} will be
+     * added back to the pool if <em>not null</em> and the specified
+     * {@link Predicate} returns <em>true</em>.
+     *
+     * @param maxSizePerKey The maximum number of instances to keep per key.
+     * @param maxIdle The maximum number of instances to keep for all keys.
+     * @param factory A {@link Function} to create new instances for a key.
+     * @param predicate A {@link Predicate} to check returned instances.
+     */
+    public KeyedObjectPool(int maxSizePerKey, int maxIdle, Function<K, T> factory, Predicate<T> predicate) {
+        if (maxSizePerKey < 1) throw new IllegalArgumentException("Invalid size per key " + maxSizePerKey);
+        if (maxIdle < 1) throw new IllegalArgumentException("Invalid maximum idle " + maxIdle);
+        this.factory = Objects.requireNonNull(factory, "Null factory");
+        this.predicate = Objects.requireNonNull(predicate, "Null predicate");
+        this.maxSizePerKey = maxSizePerKey;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Return the number of idle instances currently kept for all keys.
+     */
+    public int getIdleCount() {
+        return Math.max(0, idle.get());
+    }
+
+    /**
+     * Return the number of idle instances currently kept for the given key.
+     */
+    public int getIdleCount(K key) {
+        final KeyPool pool = pools.get(key);
+        return pool == null ? 0 : pool.pool.getIdleCount();
+    }
+
+    /**
+     * Borrow an object instance for the specified key from the pool or create
+     * a new instance if one is not currently available.
+     */
+    public T borrowObject(K key) {
+        Objects.requireNonNull(key, "Null key");
+
+        final KeyPool pool = pools.get(key);
+        if (pool != null) {
+            final T instance = pool.pool.pollObject();
+            if (instance != null) {
+                idle.decrementAndGet();
+                pool.used = true;
+                pool.release();
+                return instance;
+            }
+        }
+
+        return factory.apply(key);
+    }
+
+    /**
+     * Return an object instance for the specified key to the pool if it does
+     * not violate capacity constraints.
+     */
+    public void returnObject(K key, T instance) {
+        Objects.requireNonNull(key, "Null key");
+
+        KeyPool pool;
+        while (! (pool = pool(key)).acquire()) {
+            /* Discarded while we were looking it up, retry */
+        }
+
+        idle.incrementAndGet();
+        if (pool.pool.offerObject(instance)) {
+            if (idle.get() > maxIdle) evict();
+        } else {
+            idle.decrementAndGet();
+            pool.release();
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Get the pool for a key, creating (and queueing) it if needed */
+    private KeyPool pool(K key) {
+        final KeyPool pool = pools.get(key);
+        if (pool != null) {
+            pool.used = true;
+            return pool;
+        }
+
+        final KeyPool created = new KeyPool(key);
+        final KeyPool existing = pools.putIfAbsent(key, created);
+        if (existing != null) return existing;
+        order.offerLast(created);
+        return created;
+    }
+
+    /* Evict the oldest instance of the least recently used key */
+    private void evict() {
+        /* Give up if nothing is evictable (instances borrowed concurrently) */
+        for (int attempts = 2 * order.size() + 1; (attempts > 0) && (idle.get() > maxIdle); attempts --) {
+            final KeyPool pool = order.pollFirst();
+            if (pool == null) return;
+            if (pool.isClosed()) {
+                discarded.decrementAndGet();
+                continue;
+            }
+
+            /* Used since we last looked at it, give it a second chance */
+            if (pool.used) {
+                pool.used = false;
+                order.offerLast(pool);
+                continue;
+            }
+
+            final T instance = pool.pool.pollObject();
+            if (instance == null) {
+                order.offerLast(pool);
+                continue;
+            }
+
+            /* Still the least recently used, unless discarded */
+            idle.decrementAndGet();
+            if (! pool.release()) order.offerFirst(pool);
+            return;
+        }
+    }
+
+    /* Keys discarded while queued are skipped on eviction, or swept here */
+    private void discarded() {
+        if (discarded.incrementAndGet() <= maxIdle) return;
+        discarded.set(0);
+        order.removeIf(KeyPool::isClosed);
+    }
+
+    /* ====================================================================== */
+
+    /*
+     * The instances for a key, counting both idle instances and returns in
+     * progress: whoever takes the count to zero closes the pool (so no more
+     * instances can be returned to it) and discards it.
+     */
+    private final class KeyPool {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final ObjectPool<T> pool;
+        private final K key;
+
+        private volatile boolean used;
+
+        private KeyPool(K key) {
+            pool = new ObjectPool<T>(maxSizePerKey, () -> factory.apply(key), predicate);
+            this.key = key;
+        }
+
+        private boolean isClosed() {
+            return count.get() == CLOSED;
+        }
+
+        private boolean acquire() {
+            int current;
+            do {
+                current = count.get();
+                if (current == CLOSED) return false;
+            } while (! count.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        /* Returns whether we were closed and discarded */
+        private boolean release() {
+            if ((count.decrementAndGet() != 0) || (! count.compareAndSet(0, CLOSED))) return false;
+            pools.remove(key, this);
+            discarded();
+            return true;
+        }
+    }
+}
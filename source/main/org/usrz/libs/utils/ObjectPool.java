@@ -16,10 +16,22 @@
 package org.usrz.libs.utils;
 
 import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.concurrent.Immediate;
+import org.usrz.libs.utils.concurrent.NotifyingFuture;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * An extremely simple <em>object pool</em> constructing objects on
  * {@linkplain #borrowObject() borrow} and pooling them up to a maximum of
@@ -27,15 +39,33 @@ import java.util.function.Supplier;
  * <p>
  * Note that when this pool is empty, it will <em>always</em> call the
  * configured {@link Supplier} to create new instances.
+ * <p>
+ * To keep the cost of creating instances away from borrowers, the pool can
+ * be {@linkplain #prewarm(int) pre-warmed} and configured with a
+ * <em>low watermark</em>: whenever the number of idle instances drops below
+ * it, the pool will be refilled asynchronously by the configured
+ * {@link Executor}.
+ * <p>
+ * Callers which can not afford to block or create instances can
+ * {@linkplain #borrowAsync() borrow asynchronously}: the returned
+ * {@link NotifyingFuture} will be completed by the next instance returned
+ * to (or refilled into) the pool.
  *
  * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
  * @param <T> The type of objects stored by this {@link ObjectPool}
  */
 public class ObjectPool<T> {
 
+    private static final Log log = new Log(ObjectPool.class);
+
+    private final ConcurrentLinkedQueue<Waiter<T>> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
     private final LinkedBlockingDeque<T> deque;
     private final Supplier<T> supplier;
     private final Predicate<T> predicate;
+    private final Executor executor;
+    private final int lowWatermark;
+    private final int maxSize;
 
     /**
      * Create an {@link ObjectPool} containing up to the specified maxmum
@@ -61,13 +91,84 @@ public class ObjectPool<T> {
      *
      * @param maxSize The maximum number of instances to keep around.
      * @param supplier A {@link Supplier} to create new instances on borrow.
-     * @param supplier A {@link Predicate} to check returned instances.
+     * @param predicate A {@link Predicate} to check returned instances.
      */
     public ObjectPool(int maxSize, Supplier<T> supplier, Predicate<T> predicate) {
+        this(maxSize, 0, null, supplier, predicate);
+    }
+
+    /**
+     * Create an {@link ObjectPool} containing up to the specified maxmum
+     * number of instances, asynchronously refilled whenever the number of
+     * idle instances drops below the specified <em>low watermark</em>.
+     * <p>
+     * Objects {@linkplain #returnObject(Object) returned} will be added back
+     * to the pool if <em>not null</em>.
+     *
+     * @param maxSize The maximum number of instances to keep around.
+     * @param lowWatermark The minimum number of idle instances to keep.
+     * @param executor The {@link Executor} used to refill the pool.
+     * @param supplier A {@link Supplier} to create new instances on borrow.
+     */
+    public ObjectPool(int maxSize, int lowWatermark, Executor executor, Supplier<T> supplier) {
+        this(maxSize, lowWatermark, executor, supplier, notNull());
+    }
+
+    /**
+     * Create an {@link ObjectPool} containing up to the specified maxmum
+     * number of instances, asynchronously refilled whenever the number of
+     * idle instances drops below the specified <em>low watermark</em>.
+     * <p>
+     * Objects {@linkplain #returnObject(Object) returned} will be added back
+     * to the pool if <em>not null</em> and the specified {@link Predicate}
+     * returns <em>true</em>.
+     *
+     * @param maxSize The maximum number of instances to keep around.
+     * @param lowWatermark The minimum number of idle instances to keep, or
+     *                     <em>zero</em> to disable asynchronous refills.
+     * @param executor The {@link Executor} used to refill the pool, it can be
+     *                 <em>null</em> only if <em>lowWatermark</em> is zero.
+     * @param supplier A {@link Supplier} to create new instances on borrow.
+     * @param predicate A {@link Predicate} to check returned instances.
+     */
+    public ObjectPool(int maxSize, int lowWatermark, Executor executor, Supplier<T> supplier, Predicate<T> predicate) {
         if (maxSize < 1) throw new IllegalArgumentException("Invalid size " + maxSize);
+        if ((lowWatermark < 0) || (lowWatermark > maxSize)) throw new IllegalArgumentException("Invalid low watermark " + lowWatermark);
         this.supplier = Objects.requireNonNull(supplier, "Null supplier");
         this.predicate = ObjectPool.<T>notNull().and(predicate);
+        this.executor = lowWatermark == 0 ? executor : Objects.requireNonNull(executor, "Null executor");
         this.deque = new LinkedBlockingDeque<T>(maxSize);
+        this.lowWatermark = lowWatermark;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the maximum number of instances kept by this pool.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Return the number of idle instances currently kept by this pool.
+     */
+    public int getIdleCount() {
+        return deque.size();
+    }
+
+    /**
+     * Synchronously create up to the specified number of instances and add
+     * them to the pool, without exceeding its maximum size.
+     *
+     * @return The number of instances actually added to the pool.
+     */
+    public int prewarm(int count) {
+        int added = 0;
+        while ((added < count) && (deque.remainingCapacity() > 0)) {
+            if (! enqueue(Objects.requireNonNull(supplier.get(), "Supplier returned null"))) break;
+            added ++;
+        }
+        return added;
     }
 
     /**
@@ -76,21 +177,153 @@ public class ObjectPool<T> {
      */
     public T borrowObject() {
         final T instance = deque.pollFirst();
+        if (lowWatermark > 0) refill();
         if (instance != null) return instance;
         return supplier.get();
     }
 
+    /**
+     * Borrow an object instance from the pool without ever blocking or
+     * creating a new instance on the calling thread.
+     * <p>
+     * If an idle instance is available, the returned {@link NotifyingFuture}
+     * will be already completed, otherwise it will be completed (in FIFO
+     * order with other waiters) by the next instance
+     * {@linkplain #returnObject(Object) returned} or refilled into the pool.
+     * <p>
+     * Cancelling the returned {@link NotifyingFuture} before completion
+     * removes the caller from the queue of waiters.
+     */
+    public NotifyingFuture<T> borrowAsync() {
+        final T instance = deque.pollFirst();
+        if (lowWatermark > 0) refill();
+        if (instance != null) return Immediate.immediate(instance);
+
+        final Waiter<T> waiter = new Waiter<>(waiters);
+        waiters.offer(waiter);
+        dispatch();
+        if (lowWatermark > 0) refill();
+        return waiter;
+    }
+
     /**
      * Return an object instance to the pool if it does not violate capacity
      * constraints.
      */
     public void returnObject(T instance) {
-        if (predicate.test(instance)) deque.offerLast(instance);
+        offerObject(instance);
+    }
+
+    /* ====================================================================== */
+
+    /* Poll an idle instance, without creating or refilling */
+    T pollObject() {
+        return deque.pollFirst();
+    }
+
+    /* Check whether an instance can be returned to the pool */
+    boolean testObject(T instance) {
+        return predicate.test(instance);
+    }
+
+    /* Offer an instance back to the pool, returning whether it was kept */
+    boolean offerObject(T instance) {
+        return predicate.test(instance) && enqueue(instance);
+    }
+
+    /* Offer an instance already tested back to the pool */
+    boolean addObject(T instance) {
+        return enqueue(instance);
     }
 
     /* ====================================================================== */
 
+    /* Hand an instance to the first waiter or add it to our deque */
+    private boolean enqueue(T instance) {
+        Waiter<T> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.set(instance)) return true;
+        }
+
+        if (! deque.offerLast(instance)) return false;
+        dispatch();
+        return true;
+    }
+
+    /* Match waiters queued concurrently with instances added to our deque */
+    private void dispatch() {
+        while (! waiters.isEmpty()) {
+            final T instance = deque.pollFirst();
+            if (instance == null) return;
+
+            Waiter<T> waiter;
+            while ((waiter = waiters.poll()) != null) {
+                if (waiter.set(instance)) break;
+            }
+
+            if (waiter == null) {
+                deque.offerFirst(instance);
+                return;
+            }
+        }
+    }
+
+    private void refill() {
+        if (deque.size() >= lowWatermark) return;
+        if (! refilling.compareAndSet(false, true)) return;
+
+        try {
+            executor.execute(() -> {
+                try {
+                    while ((deque.size() < lowWatermark) || (! waiters.isEmpty())) {
+                        if (! enqueue(Objects.requireNonNull(supplier.get(), "Supplier returned null"))) break;
+                    }
+                } catch (Throwable throwable) {
+                    log.warn(throwable, "Unable to refill pool");
+                    refilling.set(false);
+                    return;
+                }
+
+                /* Borrows racing with us might have skipped their refill */
+                refilling.set(false);
+                refill();
+            });
+        } catch (Throwable throwable) {
+            refilling.set(false);
+            log.warn(throwable, "Unable to schedule pool refill");
+        }
+    }
+
     private static final <T> Predicate<T> notNull() {
         return (instance) -> instance != null;
     }
+
+    /* ====================================================================== */
+
+    private static final class Waiter<T> extends AbstractFuture<T> implements NotifyingFuture<T> {
+
+        private final ConcurrentLinkedQueue<Waiter<T>> waiters;
+
+        private Waiter(ConcurrentLinkedQueue<Waiter<T>> waiters) {
+            this.waiters = waiters;
+        }
+
+        @Override
+        protected boolean set(T instance) {
+            return super.set(instance);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (! super.cancel(mayInterruptIfRunning)) return false;
+            waiters.remove(this);
+            return true;
+        }
+
+        @Override
+        public NotifyingFuture<T> withConsumer(Consumer<Future<T>> consumer) {
+            addListener(() -> consumer.accept(this), MoreExecutors.directExecutor());
+            return this;
+        }
+    }
 }
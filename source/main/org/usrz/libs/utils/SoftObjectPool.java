@@ -0,0 +1,212 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.usrz.libs.utils.concurrent.Immediate;
+import org.usrz.libs.utils.concurrent.NotifyingFuture;
+
+/**
+ * An {@link ObjectPool} keeping up to <em>coreSize</em> instances strongly
+ * referenced, and up to <em>maxSize</em> instances in total, with the ones
+ * above the core size held through {@link SoftReference}s.
+ * <p>
+ * This allows pooling aggressively while the heap has room, and lets the
+ * garbage collector reclaim idle instances under memory pressure. Cleared
+ * references are only uncounted when the collector reports them, and are
+ * skipped (and dropped) lazily on borrow, without any locking.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of objects stored by this {@link SoftObjectPool}
+ */
+public class SoftObjectPool<T> extends ObjectPool<T> {
+
+    private final ConcurrentLinkedDeque<Soft<T>> references = new ConcurrentLinkedDeque<>();
+    private final ReferenceQueue<T> cleared = new ReferenceQueue<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicInteger softCount = new AtomicInteger();
+    private final AtomicInteger entries = new AtomicInteger();
+    private final int softSize;
+
+    /**
+     * Create a {@link SoftObjectPool} strongly keeping up to the specified
+     * core number of instances, and softly up to the specified maximum.
+     * <p>
+     * Objects {@linkplain #returnObject(Object) returned} will be added back
+     * to the pool if <em>not null</em>.
+     *
+     * @param coreSize The number of instances to keep strongly referenced.
+     * @param maxSize The maximum number of instances to keep around.
+     * @param supplier A {@link Supplier} to create new instances on borrow.
+     */
+    public SoftObjectPool(int coreSize, int maxSize, Supplier<T> supplier) {
+        this(coreSize, maxSize, supplier, (instance) -> true);
+    }
+
+    /**
+     * Create a {@link SoftObjectPool} strongly keeping up to the specified
+     * core number of instances, and softly up to the specified maximum.
+     * <p>
+     * Objects {@linkplain #returnObject(Object) returned} will be added back
+     * to the pool if <em>not null</em> and the specified {@link Predicate}
+     * returns <em>true</em>.
+     *
+     * @param coreSize The number of instances to keep strongly referenced.
+     * @param maxSize The maximum number of instances to keep around.
+     * @param supplier A {@link Supplier} to create new instances on borrow.
+     * @param predicate A {@link Predicate} to check returned instances.
+     */
+    public SoftObjectPool(int coreSize, int maxSize, Supplier<T> supplier, Predicate<T> predicate) {
+        super(coreSize, supplier, predicate);
+        if (maxSize < coreSize) throw new IllegalArgumentException("Invalid size " + maxSize);
+        softSize = maxSize - coreSize;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return super.getMaxSize() + softSize;
+    }
+
+    /**
+     * Return the number of idle instances currently kept by this pool,
+     * including softly referenced ones not yet cleared.
+     */
+    @Override
+    public int getIdleCount() {
+        expunge();
+        return super.getIdleCount() + softCount.get();
+    }
+
+    /**
+     * Borrow an object instance from the pool or create a new instance if one
+     * is not currently available.
+     */
+    @Override
+    public T borrowObject() {
+        final T instance = pollSoftly();
+        if (instance != null) return instance;
+        return super.borrowObject();
+    }
+
+    /**
+     * Borrow an object instance from the pool without ever blocking or
+     * creating a new instance on the calling thread.
+     */
+    @Override
+    public NotifyingFuture<T> borrowAsync() {
+        final T instance = pollSoftly();
+        if (instance != null) return Immediate.immediate(instance);
+        return super.borrowAsync();
+    }
+
+    /**
+     * Return an object instance to the pool if it does not violate capacity
+     * constraints.
+     */
+    @Override
+    public void returnObject(T instance) {
+        if (! testObject(instance)) return;
+        if (addObject(instance)) return;
+
+        expunge();
+        if (softCount.incrementAndGet() > softSize) {
+            softCount.decrementAndGet();
+            return;
+        }
+
+        references.offerLast(new Soft<>(instance, cleared));
+        if (entries.incrementAndGet() > 2 * softSize) sweep();
+    }
+
+    /* ====================================================================== */
+
+    /* Poll a strongly referenced instance first, then a soft one */
+    private T pollSoftly() {
+        final T instance = pollObject();
+        if (instance != null) return instance;
+
+        Soft<T> reference;
+        while ((reference = references.pollLast()) != null) {
+            entries.decrementAndGet();
+            if (! reference.claim()) continue; // cleared, and already uncounted
+            softCount.decrementAndGet();
+
+            final T referent = reference.get();
+            if (referent == null) continue;
+            reference.clear();
+            return referent;
+        }
+
+        return null;
+    }
+
+    /* Uncount references cleared by the garbage collector, they are dropped lazily */
+    private void expunge() {
+        Reference<? extends T> reference;
+        while ((reference = cleared.poll()) != null) {
+            if (((Soft<?>) reference).claim()) softCount.decrementAndGet();
+        }
+    }
+
+    /* Too many cleared references never borrowed, drop them all */
+    private void sweep() {
+        if (! sweeping.compareAndSet(false, true)) return;
+        try {
+            expunge();
+            final Iterator<Soft<T>> iterator = references.iterator();
+            while (iterator.hasNext()) {
+                if (! iterator.next().isClaimed()) continue;
+                iterator.remove();
+                entries.decrementAndGet();
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* A soft reference, uncounted exactly once (when borrowed or cleared) */
+    private static final class Soft<T> extends SoftReference<T> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Soft> CLAIMED = AtomicIntegerFieldUpdater.newUpdater(Soft.class, "claimed");
+
+        private volatile int claimed;
+
+        private Soft(T referent, ReferenceQueue<T> queue) {
+            super(referent, queue);
+        }
+
+        private boolean claim() {
+            return CLAIMED.compareAndSet(this, 0, 1);
+        }
+
+        private boolean isClaimed() {
+            return claimed != 0;
+        }
+    }
+}
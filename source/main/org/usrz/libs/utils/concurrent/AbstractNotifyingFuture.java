@@ -0,0 +1,293 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A lightweight base implementation of {@link NotifyingFuture}.
+ * <p>
+ * Consumers and threads blocked in {@link #get()} are kept in a single
+ * lock-free stack, swapped out atomically on completion, and consumers are
+ * notified through the {@link Executor} specified at construction. Threads
+ * giving up waiting (timed out or interrupted) unlink themselves, so that
+ * polling a long running future never grows the stack.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of the result of this {@link Future}.
+ */
+public abstract class AbstractNotifyingFuture<T> implements NotifyingFuture<T> {
+
+    private static final Log log = new Log(AbstractNotifyingFuture.class);
+
+    private static final int PENDING = 0;
+    private static final int COMPLETING = 1;
+    private static final int SUCCEEDED = 2;
+    private static final int FAILED = 3;
+    private static final int CANCELLED = 4;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<AbstractNotifyingFuture> STATUS =
+            AtomicIntegerFieldUpdater.newUpdater(AbstractNotifyingFuture.class, "status");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AbstractNotifyingFuture, Node> LISTENERS =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractNotifyingFuture.class, Node.class, "listeners");
+
+    /* Marks the listeners stack as already notified */
+    private static final Node NOTIFIED = new Node(null);
+
+    private final Executor notifier;
+    private volatile int status;
+    private volatile Node listeners;
+    private Object outcome;
+
+    /**
+     * Create a new {@link AbstractNotifyingFuture} notifying its consumers
+     * through the specified {@link Executor}.
+     */
+    protected AbstractNotifyingFuture(Executor notifier) {
+        this.notifier = Objects.requireNonNull(notifier, "Null notifier");
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Complete this {@link Future} with the specified result.
+     *
+     * @return <em>true</em> if completed, <em>false</em> if already done.
+     */
+    protected boolean set(T result) {
+        return complete(SUCCEEDED, result);
+    }
+
+    /**
+     * Complete this {@link Future} with the specified failure.
+     *
+     * @return <em>true</em> if completed, <em>false</em> if already done.
+     */
+    protected boolean setException(Throwable throwable) {
+        return complete(FAILED, Objects.requireNonNull(throwable, "Null throwable"));
+    }
+
+    /**
+     * Invoked when this {@link Future} is cancelled with the permission to
+     * interrupt, by default this does nothing.
+     * <p>
+     * Implementations must make sure the interrupt can only ever reach the
+     * thread while it's running this task, and never a later task.
+     */
+    protected void interruptTask() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (! STATUS.compareAndSet(this, PENDING, COMPLETING)) return false;
+        try {
+            if (mayInterruptIfRunning) interruptTask();
+        } finally {
+            status = CANCELLED;
+            notifyListeners();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return status == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return status != PENDING;
+    }
+
+    @Override
+    public T get()
+    throws InterruptedException, ExecutionException {
+        if (status <= COMPLETING) await(false, 0L);
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException {
+        if ((status <= COMPLETING) && (! await(true, unit.toNanos(timeout)))) throw new TimeoutException();
+        return report();
+    }
+
+    @Override
+    public NotifyingFuture<T> withConsumer(Consumer<Future<T>> consumer) {
+        final Node node = new Node(Objects.requireNonNull(consumer, "Null consumer"));
+        if (! push(node)) notify(node);
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    /* The executor notifying our consumers, for derived futures */
+    final Executor notifier() {
+        return notifier;
+    }
+
+    private boolean complete(int state, Object outcome) {
+        if (! STATUS.compareAndSet(this, PENDING, COMPLETING)) return false;
+        this.outcome = outcome;
+        status = state;
+        notifyListeners();
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T report()
+    throws ExecutionException {
+        switch (status) {
+            case SUCCEEDED: return (T) outcome;
+            case FAILED: throw new ExecutionException((Throwable) outcome);
+            default: throw new CancellationException();
+        }
+    }
+
+    private boolean await(boolean timed, long nanos)
+    throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        Node node = null;
+
+        while (true) {
+            if (Thread.interrupted()) {
+                if (node != null) unlink(node);
+                throw new InterruptedException();
+            }
+
+            final int status = this.status;
+            if (status > COMPLETING) return true;
+            if (status == COMPLETING) {
+                Thread.yield();
+            } else if (node == null) {
+                node = new Node(Thread.currentThread());
+                push(node);
+            } else if (! timed) {
+                LockSupport.park(this);
+            } else {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    unlink(node);
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+    }
+
+    private boolean push(Node node) {
+        while (true) {
+            final Node head = listeners;
+            if (head == NOTIFIED) return false;
+            node.next = head;
+            if (LISTENERS.compareAndSet(this, head, node)) return true;
+        }
+    }
+
+    /*
+     * Remove a waiter that gave up from the stack: like in FutureTask, its
+     * target is cleared first, and all nodes without targets are unlinked,
+     * retrying from the top whenever we race with someone else.
+     */
+    private void unlink(Node node) {
+        node.target = null;
+        retry: while (true) {
+            Node previous = null;
+            Node current = listeners;
+            if (current == NOTIFIED) return;
+
+            while (current != null) {
+                final Node next = current.next;
+                if (current.target != null) {
+                    previous = current;
+                } else if (previous != null) {
+                    previous.next = next;
+                    if (previous.target == null) continue retry;
+                } else if (! LISTENERS.compareAndSet(this, current, next)) {
+                    continue retry;
+                }
+                current = next;
+            }
+            return;
+        }
+    }
+
+    private void notifyListeners() {
+        Node node = LISTENERS.getAndSet(this, NOTIFIED);
+        if (node == null) return;
+        if (node.next == null) {
+            notify(node);
+            return;
+        }
+
+        /*
+         * Notify in order of registration, without reversing the stack in
+         * place, as waiters giving up might still be unlinking themselves.
+         */
+        final ArrayList<Node> nodes = new ArrayList<>();
+        for (; node != null; node = node.next) nodes.add(node);
+        for (int x = nodes.size() - 1; x >= 0; x --) notify(nodes.get(x));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notify(Node node) {
+        final Object target = node.target;
+        if (target == null) return; // gave up waiting
+        if (target instanceof Thread) {
+            LockSupport.unpark((Thread) target);
+            return;
+        }
+
+        final Consumer<Future<T>> consumer = (Consumer<Future<T>>) target;
+        try {
+            if (notifier instanceof Notifier) ((Notifier) notifier).execute(this, () -> consumer.accept(this));
+            else notifier.execute(() -> consumer.accept(this));
+        } catch (RuntimeException exception) {
+            log.error(exception, "Unable to notify consumer %s of %s", consumer, this);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class Node {
+
+        private volatile Object target;
+        private volatile Node next;
+
+        private Node(Object target) {
+            this.target = target;
+        }
+    }
+}
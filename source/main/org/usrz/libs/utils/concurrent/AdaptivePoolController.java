@@ -0,0 +1,144 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A controller periodically adjusting the core size of a
+ * {@link ThreadPoolExecutor} (which, with an unbounded queue, never grows
+ * past it) between configured bounds.
+ * <p>
+ * At each interval the number of threads required is estimated with
+ * <em>Little's law</em> (arrival rate times mean run time), and grown by one
+ * whenever tasks wait in queue longer than the target wait time. Like in
+ * <em>hill climbing</em>, growth is held for a few intervals when the
+ * previous increase did not improve throughput, and the pool shrinks by at
+ * most one thread per interval.
+ * <p>
+ * Controllers only reference their executor weakly, and stop as soon as it
+ * is shut down or garbage collected.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class AdaptivePoolController implements Runnable {
+
+    private static final Log log = new Log(SimpleExecutor.class);
+
+    /* Throughput must improve at least this much to keep growing */
+    private static final double IMPROVEMENT = 1.05;
+    /* Intervals growth is held for, when it did not improve throughput */
+    private static final int COOLDOWN = 5;
+
+    private final WeakReference<ThreadPoolExecutor> executorReference;
+    private final WeakReference<ExecutorMetrics> metricsReference;
+    private final long waitTime;
+    private final int minimum;
+    private final int maximum;
+
+    private ExecutorMetrics.Snapshot last;
+    private long lastNanos = System.nanoTime();
+    private double lastThroughput = 0;
+    private boolean lastGrew = false;
+    private int cooldown = 0;
+
+    private AdaptivePoolController(ThreadPoolExecutor executor, ExecutorMetrics metrics, int minimum, int maximum, Duration waitTime) {
+        executorReference = new WeakReference<>(executor);
+        metricsReference = new WeakReference<>(metrics);
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.waitTime = waitTime.toNanos();
+        this.last = metrics.snapshot();
+    }
+
+    static void start(ThreadPoolExecutor executor, ExecutorMetrics metrics, int minimum, int maximum, Duration interval, Duration waitTime) {
+        final AdaptivePoolController controller = new AdaptivePoolController(executor, metrics, minimum, maximum, waitTime);
+        final long nanos = interval.toNanos();
+        Scheduler.SCHEDULER.scheduleWithFixedDelay(controller, nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void run() {
+        final ThreadPoolExecutor executor = executorReference.get();
+        final ExecutorMetrics metrics = metricsReference.get();
+        if ((executor == null) || (metrics == null)) throw new IllegalStateException("Executor collected"); // cancels us
+        if (executor.isShutdown()) throw new IllegalStateException("Executor shut down"); // cancels us
+
+        final ExecutorMetrics.Snapshot snapshot = metrics.snapshot();
+        final long nanos = System.nanoTime();
+        final long elapsed = Math.max(1, nanos - lastNanos);
+
+        final long arrivals = snapshot.getSubmittedTasks() - last.getSubmittedTasks();
+        final long completions = (snapshot.getCompletedTasks() + snapshot.getFailedTasks())
+                               - (last.getCompletedTasks() + last.getFailedTasks());
+        final long waited = snapshot.getWaitTime().getCount() - last.getWaitTime().getCount();
+        final long ran = snapshot.getRunTime().getCount() - last.getRunTime().getCount();
+        final double meanWait = waited == 0 ? 0 : (double) (snapshot.getWaitTime().getTotal() - last.getWaitTime().getTotal()) / waited;
+        final double meanRun = ran == 0 ? 0 : (double) (snapshot.getRunTime().getTotal() - last.getRunTime().getTotal()) / ran;
+        final double throughput = (double) completions / elapsed;
+
+        final int current = executor.getCorePoolSize();
+
+        /* Little's law: threads needed to keep up with arrivals */
+        int target = (int) Math.min(Integer.MAX_VALUE, Math.ceil((double) arrivals / elapsed * meanRun));
+
+        /* Tasks waiting too long in queue, we need more threads */
+        if ((meanWait > waitTime) && (executor.getQueue().size() > 0)) target = Math.max(target, current + 1);
+
+        /* Growing last time didn't improve throughput: hold for a while */
+        if (lastGrew && (throughput < lastThroughput * IMPROVEMENT)) cooldown = COOLDOWN;
+        if (cooldown > 0) {
+            cooldown --;
+            target = Math.min(target, current);
+        }
+
+        /* Grow at most doubling, shrink one thread at a time */
+        target = Math.min(target, current + Math.max(1, current));
+        target = Math.max(target, current - 1);
+        target = Math.max(minimum, Math.min(maximum, target));
+
+        if (target != current) {
+            log.debug("Executor[%s]: resizing core pool from %d to %d threads (throughput %.1f/s, wait %.3f ms, run %.3f ms)",
+                      metrics.getExecutorName(), current, target, throughput * 1e9, meanWait / 1e6, meanRun / 1e6);
+            executor.setCorePoolSize(target);
+            metrics.resized();
+        }
+
+        lastGrew = target > current;
+        lastThroughput = throughput;
+        lastNanos = nanos;
+        last = snapshot;
+    }
+
+    /* ====================================================================== */
+
+    private static final class Scheduler {
+
+        private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(runnable, AdaptivePoolController.class.getSimpleName());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    }
+}
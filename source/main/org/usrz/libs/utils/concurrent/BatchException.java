@@ -0,0 +1,58 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+/**
+ * The failure of a batch of tasks {@linkplain SimpleExecutor#callAll(Collection,
+ * boolean) executed} without failing fast, caused by the first failed
+ * {@link Callable} (in batch order) with all other failures
+ * {@linkplain Throwable#getSuppressed() suppressed}.
+ * <p>
+ * Being a distinct exception, the failures of the {@link Callable}s (possibly
+ * shared instances) are never modified.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class BatchException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int failed;
+    private final int total;
+
+    BatchException(Throwable cause, int failed, int total) {
+        super(failed + " of " + total + " tasks failed", cause);
+        this.failed = failed;
+        this.total = total;
+    }
+
+    /**
+     * Return the number of tasks which failed.
+     */
+    public int getFailedTasks() {
+        return failed;
+    }
+
+    /**
+     * Return the total number of tasks in the batch.
+     */
+    public int getTotalTasks() {
+        return total;
+    }
+}
@@ -0,0 +1,113 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single {@link NotifyingFuture} for a batch of {@link Callable}s, being
+ * also the {@link Runnable} executed by each of the threads cooperatively
+ * draining the batch.
+ * <p>
+ * When not failing fast, failures are recorded by index and reported as a
+ * {@link BatchException} caused by the first failed task (in batch order)
+ * with all other failures suppressed, so that the callers' own exceptions
+ * (possibly shared instances) are never modified.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of the results of the {@link Callable}s.
+ */
+class BatchFuture<T> extends AbstractNotifyingFuture<List<T>> implements Runnable {
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final ExecutorMetrics metrics;
+    private final Callable<?>[] callables;
+    private final Throwable[] failures;
+    private final Object[] results;
+    private final boolean failFast;
+    private final long submitted;
+
+    BatchFuture(Collection<? extends Callable<T>> callables, boolean failFast, Executor notifier, ExecutorMetrics metrics) {
+        super(notifier);
+        this.callables = callables.toArray(new Callable<?>[callables.size()]);
+        this.results = new Object[this.callables.length];
+        this.failures = new Throwable[this.callables.length];
+        this.remaining = new AtomicInteger(this.callables.length);
+        this.failFast = failFast;
+        this.metrics = metrics;
+        submitted = System.nanoTime();
+        if (this.callables.length == 0) complete();
+    }
+
+    int size() {
+        return callables.length;
+    }
+
+    @Override
+    public void run() {
+        while (! isDone()) {
+            final int index = next.getAndIncrement();
+            if (index >= callables.length) return;
+
+            final long started = System.nanoTime();
+            metrics.started(started - submitted);
+            try {
+                results[index] = callables[index].call();
+                metrics.completed(System.nanoTime() - started, true);
+            } catch (Throwable throwable) {
+                metrics.completed(System.nanoTime() - started, false);
+                if (failFast) {
+                    setException(throwable);
+                    return;
+                }
+                failures[index] = throwable;
+            }
+
+            if (remaining.decrementAndGet() == 0) complete();
+        }
+    }
+
+    /* All failures were recorded before the last decrement of "remaining" */
+    @SuppressWarnings("unchecked")
+    private void complete() {
+        BatchException exception = null;
+        int failed = 0;
+        for (Throwable failure: failures) if (failure != null) failed ++;
+
+        for (Throwable failure: failures) {
+            if (failure == null) continue;
+            if (exception == null) {
+                exception = new BatchException(failure, failed, failures.length);
+            } else {
+                exception.addSuppressed(failure);
+            }
+        }
+
+        if (exception != null) {
+            setException(exception);
+        } else {
+            final List<T> list = new ArrayList<>(results.length);
+            for (Object result: results) list.add((T) result);
+            set(list);
+        }
+    }
+}
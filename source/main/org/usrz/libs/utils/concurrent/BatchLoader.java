@@ -0,0 +1,122 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.Check;
+
+/**
+ * A loader coalescing lookups of individual keys into bulk lookups.
+ * <p>
+ * Like a {@link KeyedExecutor}, concurrent loads of the same key share the
+ * same {@link NotifyingFuture}. Distinct keys requested within a short
+ * <em>window</em> (or until <em>max batch size</em> keys are requested)
+ * are then collected by a {@link MicroBatchingExecutor}, and loaded all
+ * together with a single call to the <em>loader</em> {@link Function}.
+ * <p>
+ * Keys missing from the {@link Map} returned by the loader are loaded as
+ * <em>null</em>, while if the loader fails all futures in the batch fail
+ * (as they do when the batch is rejected or cancelled by the executor).
+ * Results are not retained: once a key's future is completed, loading the
+ * same key again will request it in a new batch.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <K> The type of the keys to load.
+ * @param <V> The type of the values loaded.
+ */
+public class BatchLoader<K, V> {
+
+    private final ConcurrentHashMap<K, SettableNotifyingFuture<V>> futures = new ConcurrentHashMap<>();
+    private final MicroBatchingExecutor<BatchLoader<K, V>, K> batcher;
+    private final Function<Set<K>, Map<K, V>> loader;
+    private final Executor notifier;
+    private final Log log = new Log();
+    private final String name;
+
+    /**
+     * Create a new {@link BatchLoader}.
+     *
+     * @param executor The {@link SimpleExecutor} calling the loader.
+     * @param maxBatchSize The maximum number of keys loaded in one call.
+     * @param window The maximum time a key waits for its batch to fill.
+     * @param loader The {@link Function} loading the values of all keys.
+     */
+    public BatchLoader(SimpleExecutor executor, int maxBatchSize, Duration window, Function<Set<K>, Map<K, V>> loader) {
+        this.batcher = new MicroBatchingExecutor<>(executor, maxBatchSize, window, (self, keys) -> load(keys));
+        this.loader = Check.notNull(loader, "Null loader");
+        this.notifier = executor.notifier();
+        this.name = executor.getName();
+    }
+
+    /**
+     * Load the value associated with the specified key.
+     */
+    public NotifyingFuture<V> load(K key) {
+
+        /* Check if the key is already being loaded */
+        SettableNotifyingFuture<V> existing = futures.get(Check.notNull(key, "Null key"));
+        if (existing != null) return existing;
+
+        /* Install a new future, unless someone else beat us to it */
+        final SettableNotifyingFuture<V> future = new SettableNotifyingFuture<>(notifier);
+        existing = futures.putIfAbsent(key, future);
+        if (existing != null) return existing;
+
+        /* Batches rejected or cancelled never call the loader, fail here */
+        batcher.submit(this, key).withConsumer((submitted) -> {
+            try {
+                submitted.get();
+            } catch (Throwable throwable) {
+                futures.remove(key, future);
+                future.fail(throwable);
+            }
+        });
+        return future;
+    }
+
+    /* ====================================================================== */
+
+    private void load(List<K> keys) {
+        final Set<K> set = new LinkedHashSet<>(keys);
+        log.trace("Executor[%s]: loading %d keys", name, set.size());
+
+        final Map<K, V> values;
+        try {
+            values = loader.apply(set);
+        } catch (Throwable throwable) {
+            for (K key: set) {
+                final SettableNotifyingFuture<V> future = futures.remove(key);
+                if (future != null) future.setException(throwable);
+            }
+            throw throwable;
+        }
+
+        /* Remove before completing, new loads will request keys again */
+        for (K key: set) {
+            final SettableNotifyingFuture<V> future = futures.remove(key);
+            if (future != null) future.set(values == null ? null : values.get(key));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link Executor} notifying consumers of {@link NotifyingFuture}s on a
+ * fixed number of <em>lanes</em>, each with its own dedicated thread.
+ * <p>
+ * Each thread drains its own lock-free, multiple-producers queue until
+ * empty, so that a burst of notifications costs a single wake up: submitting
+ * a notification costs a single CAS, and a wake up only when the thread is
+ * parked with nothing else to do.
+ * <p>
+ * Threads are started on demand, and terminate once idle for longer than
+ * the configured <em>keep alive</em> time, so that idle notifiers hold no
+ * threads (and can be garbage collected).
+ * <p>
+ * When <em>ordered</em>, all notifications for the same future go to the
+ * same lane, and are therefore delivered in the order they were submitted.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class BatchingNotifier implements Notifier {
+
+    private static final Log log = new Log(BatchingNotifier.class);
+
+    /* The states of a lane's thread */
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int PARKED = 2;
+
+    private final boolean ordered;
+    private final Lane[] lanes;
+
+    BatchingNotifier(String name, int threads, int priority, Duration keepAlive, boolean ordered) {
+        if (threads < 1) throw new IllegalArgumentException("Invalid number of threads " + threads);
+        final long keepAliveNanos = Objects.requireNonNull(keepAlive, "Null keep alive").toNanos();
+        this.ordered = ordered;
+
+        lanes = new Lane[threads];
+        for (int x = 0; x < threads; x ++) {
+            lanes[x] = new Lane(String.format("%s-%d", name, x + 1), priority, keepAliveNanos);
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void execute(Runnable runnable) {
+        execute(Thread.currentThread(), runnable);
+    }
+
+    @Override
+    public void execute(NotifyingFuture<?> future, Runnable runnable) {
+        execute((Object) future, runnable);
+    }
+
+    /* Notifications for the same future are kept in order, if so configured */
+    private void execute(Object future, Runnable runnable) {
+        final Object key = ordered ? future : Thread.currentThread();
+        final int hash = System.identityHashCode(key);
+        lanes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length].add(Objects.requireNonNull(runnable, "Null runnable"));
+    }
+
+    /* ====================================================================== */
+
+    private static final class Lane implements Runnable {
+
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private final long keepAlive;
+        private final int priority;
+        private final String name;
+
+        private volatile Thread thread;
+
+        private Lane(String name, int priority, long keepAlive) {
+            this.keepAlive = keepAlive;
+            this.priority = priority;
+            this.name = name;
+        }
+
+        private void add(Runnable runnable) {
+            queue.add(runnable);
+            while (true) {
+                switch (state.get()) {
+                    case RUNNING:
+                        return;
+                    case PARKED:
+                        if (! state.compareAndSet(PARKED, RUNNING)) continue;
+                        LockSupport.unpark(thread);
+                        return;
+                    default:
+                        if (! state.compareAndSet(IDLE, RUNNING)) continue;
+                        start();
+                        return;
+                }
+            }
+        }
+
+        private void start() {
+            final Thread thread = new Thread(this, name);
+            thread.setPriority(priority);
+            thread.setDaemon(true);
+            this.thread = thread;
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                for (Runnable runnable = queue.poll(); runnable != null; runnable = queue.poll()) {
+                    try {
+                        runnable.run();
+                    } catch (Throwable throwable) {
+                        log.error(throwable, "Exception notifying %s", runnable);
+                    }
+                }
+
+                /* Drained: park, re-checking the queue to not miss anything */
+                state.set(PARKED);
+                if (! queue.isEmpty()) {
+                    state.compareAndSet(PARKED, RUNNING);
+                    continue;
+                }
+                final long deadline = System.nanoTime() + keepAlive;
+                for (long remaining = keepAlive; (remaining > 0) && (state.get() == PARKED); remaining = deadline - System.nanoTime()) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+
+                /* Still parked (not woken up) after our keep alive? Terminate */
+                if (state.compareAndSet(PARKED, IDLE)) {
+                    if (queue.isEmpty() || (! state.compareAndSet(IDLE, RUNNING))) return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * The single timer tracking the deadlines of all {@link SimpleFuture}s.
+ * <p>
+ * Deadlines are kept in the {@link SharedTimer}, whose worker hands overdue
+ * futures to a small pool of daemon threads to be
+ * {@linkplain SimpleFuture#expire() expired}: expiring a future notifies its
+ * consumers, which (with an inline notifier) might take arbitrarily long
+ * and must never delay the deadlines of other futures.
+ * Futures completing before their deadline cancel their timeout, so that
+ * they (and their results) are removed from the wheel at the next tick.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class DeadlineTimer {
+
+    /* Expiring is cheap, unless notifying inline */
+    private static final Executor EXPIRER = SharedTimer.pool(DeadlineTimer.class.getSimpleName() + "[Expirer]",
+                                                             Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private DeadlineTimer() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /* ====================================================================== */
+
+    static void schedule(SimpleFuture<?> future, Duration timeout) {
+        final NotifyingFuture<?> expiry = SharedTimer.TIMER.schedule(() -> EXPIRER.execute(() -> {
+            if (! future.isDone()) future.expire();
+        }), timeout);
+        future.withConsumer((done) -> expiry.cancel(false));
+    }
+
+}
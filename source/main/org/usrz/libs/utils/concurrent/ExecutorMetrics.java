@@ -0,0 +1,351 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics collected by a {@link SimpleExecutor}: task counts, and histograms
+ * of the time tasks wait in queue (from submission to start) and of the time
+ * they take to run (from start to end).
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class ExecutorMetrics implements ExecutorMetricsMXBean {
+
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder resizes = new LongAdder();
+    private final ExecutorService executor;
+    private final String executorName;
+
+    ExecutorMetrics(String executorName, ExecutorService executor) {
+        this.executorName = executorName;
+        this.executor = executor;
+    }
+
+    /* ====================================================================== */
+
+    void submitted() {
+        submitted.increment();
+    }
+
+    void rejected() {
+        submitted.decrement();
+        rejected.increment();
+    }
+
+    void callerRuns() {
+        callerRuns.increment();
+    }
+
+    void blocked() {
+        blocked.increment();
+    }
+
+    void dropped() {
+        dropped.increment();
+    }
+
+    void expired() {
+        expired.increment();
+    }
+
+    void started(long waitNanos) {
+        waitTime.record(waitNanos);
+    }
+
+    void completed(long runNanos, boolean success) {
+        runTime.record(runNanos);
+        if (success) completed.increment();
+        else failed.increment();
+    }
+
+    void resized() {
+        resizes.increment();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return an immutable {@link Snapshot} of these {@link ExecutorMetrics}.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public String getExecutorName() {
+        return executorName;
+    }
+
+    @Override
+    public int getQueueSize() {
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getQueue().size();
+        if (executor instanceof ForkJoinPool) {
+            final ForkJoinPool pool = (ForkJoinPool) executor;
+            return (int) Math.min(Integer.MAX_VALUE, pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+        }
+        if (executor instanceof RingBufferExecutor) return ((RingBufferExecutor) executor).size();
+        return -1;
+    }
+
+    @Override
+    public int getActiveCount() {
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getActiveCount();
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getActiveThreadCount();
+        return -1;
+    }
+
+    @Override
+    public int getPoolSize() {
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getPoolSize();
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getPoolSize();
+        if (executor instanceof RingBufferExecutor) return ((RingBufferExecutor) executor).threads();
+        return -1;
+    }
+
+    @Override
+    public int getCorePoolSize() {
+        if (executor instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) executor).getCorePoolSize();
+        if (executor instanceof ForkJoinPool) return ((ForkJoinPool) executor).getParallelism();
+        if (executor instanceof RingBufferExecutor) return ((RingBufferExecutor) executor).threads();
+        return -1;
+    }
+
+    @Override
+    public long getPoolResizes() {
+        return resizes.sum();
+    }
+
+    @Override
+    public long getSubmittedTasks() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getCompletedTasks() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getFailedTasks() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRejectedTasks() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getCallerRunsTasks() {
+        return callerRuns.sum();
+    }
+
+    @Override
+    public long getBlockedSubmissions() {
+        return blocked.sum();
+    }
+
+    @Override
+    public long getDroppedTasks() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getExpiredTasks() {
+        return expired.sum();
+    }
+
+    @Override
+    public long getWaitTimeMean() {
+        return NANOSECONDS.toMicros(waitTime.snapshot().getMean());
+    }
+
+    @Override
+    public long getWaitTime50thPercentile() {
+        return NANOSECONDS.toMicros(waitTime.snapshot().getPercentile(50));
+    }
+
+    @Override
+    public long getWaitTime99thPercentile() {
+        return NANOSECONDS.toMicros(waitTime.snapshot().getPercentile(99));
+    }
+
+    @Override
+    public long getWaitTimeMax() {
+        return NANOSECONDS.toMicros(waitTime.snapshot().getMax());
+    }
+
+    @Override
+    public long getRunTimeMean() {
+        return NANOSECONDS.toMicros(runTime.snapshot().getMean());
+    }
+
+    @Override
+    public long getRunTime50thPercentile() {
+        return NANOSECONDS.toMicros(runTime.snapshot().getPercentile(50));
+    }
+
+    @Override
+    public long getRunTime99thPercentile() {
+        return NANOSECONDS.toMicros(runTime.snapshot().getPercentile(99));
+    }
+
+    @Override
+    public long getRunTimeMax() {
+        return NANOSECONDS.toMicros(runTime.snapshot().getMax());
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * An immutable snapshot of {@link ExecutorMetrics}.
+     */
+    public static final class Snapshot {
+
+        private final String executorName;
+        private final int queueSize;
+        private final int activeCount;
+        private final int poolSize;
+        private final int corePoolSize;
+        private final long poolResizes;
+        private final long submittedTasks;
+        private final long completedTasks;
+        private final long failedTasks;
+        private final long rejectedTasks;
+        private final long callerRunsTasks;
+        private final long blockedSubmissions;
+        private final long droppedTasks;
+        private final long expiredTasks;
+        private final LatencyHistogram.Snapshot waitTime;
+        private final LatencyHistogram.Snapshot runTime;
+
+        private Snapshot(ExecutorMetrics metrics) {
+            executorName = metrics.getExecutorName();
+            queueSize = metrics.getQueueSize();
+            activeCount = metrics.getActiveCount();
+            poolSize = metrics.getPoolSize();
+            corePoolSize = metrics.getCorePoolSize();
+            poolResizes = metrics.getPoolResizes();
+            submittedTasks = metrics.getSubmittedTasks();
+            completedTasks = metrics.getCompletedTasks();
+            failedTasks = metrics.getFailedTasks();
+            rejectedTasks = metrics.getRejectedTasks();
+            callerRunsTasks = metrics.getCallerRunsTasks();
+            blockedSubmissions = metrics.getBlockedSubmissions();
+            droppedTasks = metrics.getDroppedTasks();
+            expiredTasks = metrics.getExpiredTasks();
+            waitTime = metrics.waitTime.snapshot();
+            runTime = metrics.runTime.snapshot();
+        }
+
+        public String getExecutorName() {
+            return executorName;
+        }
+
+        /** The number of queued tasks, or -1 if unknown. */
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        /** The number of threads running tasks, or -1 if unknown. */
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        /** The number of threads in the pool, or -1 if unknown. */
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        /** The configured (or adapted) number of core threads, or -1 if unknown. */
+        public int getCorePoolSize() {
+            return corePoolSize;
+        }
+
+        /** The number of times the pool was resized by its controller. */
+        public long getPoolResizes() {
+            return poolResizes;
+        }
+
+        public long getSubmittedTasks() {
+            return submittedTasks;
+        }
+
+        public long getCompletedTasks() {
+            return completedTasks;
+        }
+
+        public long getFailedTasks() {
+            return failedTasks;
+        }
+
+        public long getRejectedTasks() {
+            return rejectedTasks;
+        }
+
+        /** The number of tasks run by the submitting thread on saturation. */
+        public long getCallerRunsTasks() {
+            return callerRunsTasks;
+        }
+
+        /** The number of submissions blocked waiting for space in the queue. */
+        public long getBlockedSubmissions() {
+            return blockedSubmissions;
+        }
+
+        /** The number of queued tasks discarded to make space for new ones. */
+        public long getDroppedTasks() {
+            return droppedTasks;
+        }
+
+        /** The number of tasks failed because their deadline passed. */
+        public long getExpiredTasks() {
+            return expiredTasks;
+        }
+
+        /** The time tasks waited from submission to start. */
+        public LatencyHistogram.Snapshot getWaitTime() {
+            return waitTime;
+        }
+
+        /** The time tasks took from start to end. */
+        public LatencyHistogram.Snapshot getRunTime() {
+            return runTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Executor[%s]: queue=%d active=%d pool=%d core=%d resizes=%d submitted=%d completed=%d failed=%d rejected=%d callerRuns=%d blocked=%d dropped=%d expired=%d wait=[%s] run=[%s]",
+                                 executorName, queueSize, activeCount, poolSize, corePoolSize, poolResizes, submittedTasks, completedTasks, failedTasks, rejectedTasks, callerRunsTasks, blockedSubmissions, droppedTasks, expiredTasks, waitTime, runTime);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+/**
+ * The JMX view of {@link ExecutorMetrics}, all times are in microseconds.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public interface ExecutorMetricsMXBean {
+
+    public String getExecutorName();
+
+    public int getQueueSize();
+
+    public int getActiveCount();
+
+    public int getPoolSize();
+
+    public int getCorePoolSize();
+
+    public long getPoolResizes();
+
+    public long getSubmittedTasks();
+
+    public long getCompletedTasks();
+
+    public long getFailedTasks();
+
+    public long getRejectedTasks();
+
+    public long getCallerRunsTasks();
+
+    public long getBlockedSubmissions();
+
+    public long getDroppedTasks();
+
+    public long getExpiredTasks();
+
+    public long getWaitTimeMean();
+
+    public long getWaitTime50thPercentile();
+
+    public long getWaitTime99thPercentile();
+
+    public long getWaitTimeMax();
+
+    public long getRunTimeMean();
+
+    public long getRunTime50thPercentile();
+
+    public long getRunTime99thPercentile();
+
+    public long getRunTimeMax();
+
+}
@@ -0,0 +1,311 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.usrz.libs.logging.Log;
+
+import com.google.inject.ProvidedBy;
+
+/**
+ * A <em>hashed timing wheel</em> scheduling large numbers of (coarse)
+ * timeouts in constant time.
+ * <p>
+ * Time is divided in <em>ticks</em>, and a timeout expiring at tick
+ * <em>t</em> is kept in the bucket <em>t mod wheel size</em>, together with
+ * the number of full rotations of the wheel still to go. Every tick a single
+ * worker thread expires the timeouts in the current bucket, therefore
+ * timeouts fire up to one tick late.
+ * <p>
+ * Scheduling and cancelling simply add the timeout to lock-free queues,
+ * which the worker drains into (or out of) the wheel at every tick. Expired
+ * tasks are run by the {@link Executor} given at construction, which also
+ * notifies the consumers of the returned {@link NotifyingFuture}s.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@ProvidedBy(HashedWheelTimerProvider.class)
+public class HashedWheelTimer {
+
+    /* Cap the number of timeouts moved in the wheel at every tick */
+    private static final int MAX_TRANSFERS = 100000;
+
+    private static final Log log = new Log(HashedWheelTimer.class);
+
+    private final ConcurrentLinkedQueue<Timeout<?>> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout<?>> cancelled = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private final ExecutorService shutdown;
+    private final Executor executor;
+    private final Bucket[] wheel;
+    private final Thread worker;
+    private final String name;
+    private final long tick;
+    private final int mask;
+
+    private volatile boolean stopped;
+    private volatile boolean idle;
+
+    /**
+     * Create a new {@link HashedWheelTimer}.
+     *
+     * @param name The name of this timer (and of its worker thread).
+     * @param tick The duration of a tick, the resolution of this timer.
+     * @param wheelSize The number of buckets, rounded up to a power of two.
+     * @param executor The {@link Executor} running expired tasks.
+     */
+    public HashedWheelTimer(String name, Duration tick, int wheelSize, Executor executor) {
+        this(name, tick, wheelSize, executor, false);
+    }
+
+    /* Optionally shut down our executor (if we created it) when stopped */
+    HashedWheelTimer(String name, Duration tick, int wheelSize, Executor executor, boolean shutdown) {
+        if (tick.isNegative() || tick.isZero()) throw new IllegalArgumentException("Invalid tick duration " + tick);
+        if ((wheelSize < 1) || (wheelSize > (1 << 30))) throw new IllegalArgumentException("Invalid wheel size " + wheelSize);
+
+        this.executor = Objects.requireNonNull(executor, "Null executor");
+        this.shutdown = shutdown ? (ExecutorService) executor : null;
+        this.name = name == null ? "Unknown" : name;
+        this.tick = tick.toNanos();
+
+        final int size = Integer.highestOneBit(wheelSize) == wheelSize ? wheelSize : Integer.highestOneBit(wheelSize) << 1;
+        wheel = new Bucket[size];
+        for (int x = 0; x < size; x ++) wheel[x] = new Bucket();
+        mask = size - 1;
+
+        worker = new Thread(this::work, this.name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Run the specified {@link Runnable} after the given delay.
+     */
+    public NotifyingFuture<?> schedule(Runnable runnable, Duration delay) {
+        Objects.requireNonNull(runnable, "Null runnable");
+        return schedule(() -> { runnable.run(); return null; }, delay);
+    }
+
+    /**
+     * Call the specified {@link Callable} after the given delay, returning a
+     * {@link NotifyingFuture} for its result; cancelling the future before
+     * the delay expires removes the task from this timer.
+     */
+    public <T> NotifyingFuture<T> schedule(Callable<T> callable, Duration delay) {
+        Objects.requireNonNull(callable, "Null callable");
+        Objects.requireNonNull(delay, "Null delay");
+        if (stopped) throw new RejectedExecutionException("Timer[" + name + "] stopped");
+
+        final long deadline = System.nanoTime() - start + Math.max(0, delay.toNanos());
+        final Timeout<T> timeout = new Timeout<>(callable, deadline);
+        scheduled.add(timeout);
+        if (idle) LockSupport.unpark(worker);
+
+        /* Raced with stop(), the worker might have missed us */
+        if (stopped && scheduled.remove(timeout)) timeout.cancel(false);
+        return timeout;
+    }
+
+    /**
+     * Stop this timer, cancelling all timeouts not yet expired (and shutting
+     * down its {@link Executor} if created by {@link HashedWheelTimerProvider}).
+     */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    /* ====================================================================== */
+
+    private void work() {
+        long ticks = 0;
+        int size = 0;
+
+        while (! stopped) {
+
+            /* Nothing to do? Sleep until something gets scheduled */
+            if ((size == 0) && scheduled.isEmpty()) {
+                cancelled.clear();
+                idle = true;
+                while (scheduled.isEmpty() && (! stopped)) LockSupport.park(this);
+                idle = false;
+                ticks = Math.max(ticks, (System.nanoTime() - start) / tick);
+                continue;
+            }
+
+            /* Wait for the end of the current tick */
+            final long deadline = tick * (ticks + 1);
+            long sleep;
+            while (((sleep = deadline - (System.nanoTime() - start)) > 0) && (! stopped)) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (stopped) break;
+
+            /* Remove cancelled timeouts, add new ones, expire the bucket */
+            for (Timeout<?> timeout = cancelled.poll(); timeout != null; timeout = cancelled.poll()) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                    size --;
+                }
+            }
+
+            for (int x = 0; x < MAX_TRANSFERS; x ++) {
+                final Timeout<?> timeout = scheduled.poll();
+                if (timeout == null) break;
+                if (timeout.isDone()) continue;
+
+                final long expiry = timeout.deadline / tick;
+                timeout.rounds = (expiry - ticks) / wheel.length;
+                wheel[(int) (Math.max(expiry, ticks) & mask)].add(timeout);
+                size ++;
+            }
+
+            size -= wheel[(int) (ticks & mask)].expire(deadline);
+            ticks ++;
+        }
+
+        /* Stopped, cancel everything left */
+        for (Bucket bucket: wheel) bucket.clear();
+        for (Timeout<?> timeout = scheduled.poll(); timeout != null; timeout = scheduled.poll()) {
+            timeout.cancel(false);
+        }
+        if (shutdown != null) shutdown.shutdown();
+        log.debug("Timer[%s] stopped", name);
+    }
+
+    /* ====================================================================== */
+
+    /* A doubly linked list of timeouts, only ever accessed by the worker */
+    private static final class Bucket {
+
+        private Timeout<?> head;
+        private Timeout<?> tail;
+
+        private void add(Timeout<?> timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout<?> timeout) {
+            if (timeout.prev == null) head = timeout.next;
+            else timeout.prev.next = timeout.next;
+            if (timeout.next == null) tail = timeout.prev;
+            else timeout.next.prev = timeout.prev;
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        /* Expire all timeouts due by the deadline, returning how many we removed */
+        private int expire(long deadline) {
+            int removed = 0;
+            Timeout<?> timeout = head;
+            while (timeout != null) {
+                final Timeout<?> next = timeout.next;
+                if (timeout.isDone()) {
+                    remove(timeout);
+                    removed ++;
+                } else if ((timeout.rounds <= 0) && (timeout.deadline <= deadline)) {
+                    remove(timeout);
+                    removed ++;
+                    timeout.expire();
+                } else {
+                    timeout.rounds --;
+                }
+                timeout = next;
+            }
+            return removed;
+        }
+
+        private void clear() {
+            while (head != null) {
+                final Timeout<?> timeout = head;
+                remove(timeout);
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    private final class Timeout<T> extends AbstractNotifyingFuture<T> implements Runnable {
+
+        private final Callable<T> callable;
+        private final long deadline;
+
+        /* Only ever accessed by the worker thread */
+        private Bucket bucket;
+        private Timeout<?> prev;
+        private Timeout<?> next;
+        private long rounds;
+
+        private Timeout(Callable<T> callable, long deadline) {
+            super(executor);
+            this.callable = callable;
+            this.deadline = deadline;
+        }
+
+        private void expire() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException exception) {
+                setException(exception);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) return;
+            try {
+                set(callable.call());
+            } catch (Throwable throwable) {
+                setException(throwable);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (! super.cancel(mayInterruptIfRunning)) return false;
+            if (Thread.currentThread() != worker) cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + "[" + callable + "]";
+        }
+    }
+}
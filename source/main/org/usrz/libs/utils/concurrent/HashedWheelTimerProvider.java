@@ -0,0 +1,93 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.lang.annotation.Annotation;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.inject.ConfigurableProvider;
+
+public class HashedWheelTimerProvider extends ConfigurableProvider<HashedWheelTimer> {
+
+    public static final String TIMER_NAME = "timer_name";
+    public static final String TICK_DURATION = "tick_duration";
+    public static final String WHEEL_SIZE = "wheel_size";
+    public static final String EXECUTOR_THREADS = "executor_threads";
+
+    private static final Log log = new Log(HashedWheelTimer.class);
+
+    @Inject
+    private HashedWheelTimerProvider() {
+        this(Configurations.EMPTY_CONFIGURATIONS);
+    }
+
+    public HashedWheelTimerProvider(String name) {
+        super(name, true);
+    }
+
+    public HashedWheelTimerProvider(Annotation annotation) {
+        super(annotation, true);
+    }
+
+    public HashedWheelTimerProvider(Class<? extends Annotation> annotation) {
+        super(annotation, true);
+    }
+
+    public HashedWheelTimerProvider(Configurations configurations) {
+        super(configurations, true);
+    }
+
+    @Override
+    public HashedWheelTimer get(Configurations configurations) {
+        return create(configurations);
+    }
+
+    public static final HashedWheelTimer create(Configurations configurations) {
+        final String timerName      = configurations.get(TIMER_NAME, String.format("%s@%04x", HashedWheelTimer.class.getSimpleName(), new Random().nextInt()));
+        final Duration tickDuration = configurations.validate(TICK_DURATION,    Duration.ofMillis(100), (Duration value) -> ! (value.isNegative() || value.isZero()));
+        final int wheelSize         = configurations.validate(WHEEL_SIZE,       512,                    (int value) -> (value >= 1) && (value <= (1 << 30)));
+        final int executorThreads   = configurations.validate(EXECUTOR_THREADS, 0,                      (int value) -> value >= 0);
+
+        log.debug("Timer[%s]    tick duration: %d ms",      timerName, tickDuration.toMillis());
+        log.debug("Timer[%s]       wheel size: %d buckets", timerName, wheelSize);
+        log.debug("Timer[%s] executor threads: %d threads", timerName, executorThreads);
+
+        /* Expired tasks run in the timer thread, unless we have executors */
+        if (executorThreads == 0) {
+            return new HashedWheelTimer(timerName, tickDuration, wheelSize, (runnable) -> runnable.run());
+        } else {
+            final AtomicInteger threadNumber = new AtomicInteger(0);
+            final ThreadFactory factory = (runnable) -> {
+                final Thread thread = new Thread(runnable, String.format("%s[Executor]-%d", timerName, threadNumber.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            };
+
+            /* Our executor is shut down when the timer is stopped */
+            final ExecutorService executor = Executors.newFixedThreadPool(executorThreads, factory);
+            return new HashedWheelTimer(timerName, tickDuration, wheelSize, executor, true);
+        }
+    }
+}
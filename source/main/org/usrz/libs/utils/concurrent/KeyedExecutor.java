@@ -15,52 +15,580 @@
  * ========================================================================== */
 package org.usrz.libs.utils.concurrent;
 
+import java.time.Duration;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.logging.Log;
 import org.usrz.libs.utils.Check;
 
+/**
+ * An executor running at most one task per key at any given time: calls
+ * for a key whose task is still running get the same {@link NotifyingFuture}.
+ * <p>
+ * When configured with a <em>retention time</em>, successful results are
+ * also kept (and returned without running anything) for that long after
+ * completion. If a <em>stale time</em> is configured, results older than
+ * the retention time but within the stale time are still returned, while a
+ * single task refreshes them in the background. At most <em>max size</em>
+ * results are retained, the oldest ones being evicted first.
+ * <p>
+ * In <em>serial</em> execution mode, tasks are never deduplicated: every
+ * task for a key is executed, in submission order and never concurrently
+ * with other tasks for the same key. Each key gets a lightweight queue,
+ * whose tasks are chained one after the other on the {@link SimpleExecutor}
+ * (without holding a thread) and which is discarded as soon as it's empty.
+ * Results are never retained in <em>serial</em> mode, and configuring a
+ * retention time, stale time or max size is an error.
+ * <p>
+ * Admission can be limited per key, so that a single key can not take over
+ * the whole {@link SimpleExecutor}: in <em>serial</em> mode at most <em>max
+ * in flight</em> tasks for a key can be queued or running (deduplicated keys
+ * never have more than one, so the limit can not be configured), and tasks
+ * can be admitted at a <em>rate limit</em> per second, with bursts of up to
+ * <em>rate burst</em> tasks. Tasks over limit either fail fast with a
+ * {@link RejectedExecutionException} or, when so configured, are queued and
+ * admitted in order as soon as the limits allow. The state of each limited
+ * key is lock-free, and is discarded as soon as the key is idle.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <K> The type of the keys tasks are executed for.
+ */
 public class KeyedExecutor<K> {
 
-    private final ConcurrentHashMap<K, NotifyingFuture<?>> futures = new ConcurrentHashMap<>();
+    public static final String RETENTION_TIME = "retention_time";
+    public static final String STALE_TIME = "stale_time";
+    public static final String MAX_SIZE = "max_size";
+    public static final String EXECUTION_MODE = "execution_mode";
+    public static final String MAX_IN_FLIGHT = "max_in_flight";
+    public static final String RATE_LIMIT = "rate_limit";
+    public static final String RATE_BURST = "rate_burst";
+    public static final String OVER_LIMIT = "over_limit";
+
+    public static final String DEDUPLICATE = "deduplicate";
+    public static final String SERIAL = "serial";
+
+    public static final String FAIL_FAST = "fail_fast";
+    public static final String QUEUE = "queue";
+
+    /* The state of a serial queue or limiter that was discarded */
+    private static final int CLOSED = -1;
+
+    private final ConcurrentHashMap<K, Entry<K, ?>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry<K, ?>> retained = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retainedCount = new AtomicInteger();
+    private final AtomicInteger discardedCount = new AtomicInteger();
+    private final ConcurrentHashMap<K, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<K, Limiter> limiters = new ConcurrentHashMap<>();
     private final SimpleExecutor executor;
     private final Log log = new Log();
     private final String name;
 
+    private final long retentionTime;
+    private final long staleTime;
+    private final int maxSize;
+    private final boolean serial;
+
+    private final int maxInFlight;
+    private final long interval;
+    private final long tolerance;
+    private final boolean queueOverLimit;
+    private final boolean limited;
+
     public KeyedExecutor(SimpleExecutor executor) {
+        this(executor, Configurations.EMPTY_CONFIGURATIONS);
+    }
+
+    public KeyedExecutor(SimpleExecutor executor, Configurations configurations) {
         this.executor = Check.notNull(executor, "Null executor");
         this.name = executor.getName();
+
+        retentionTime = configurations.validate(RETENTION_TIME, Duration.ZERO,     (Duration value) -> ! value.isNegative()).toNanos();
+        staleTime     = configurations.validate(STALE_TIME,     Duration.ZERO,     (Duration value) -> ! value.isNegative()).toNanos();
+        maxSize       = configurations.validate(MAX_SIZE,       Integer.MAX_VALUE, (int value) -> value >= 1);
+
+        final String mode = configurations.get(EXECUTION_MODE, DEDUPLICATE);
+        if (! (DEDUPLICATE.equals(mode) || SERIAL.equals(mode)))
+            throw new IllegalArgumentException("Invalid execution mode \"" + mode + "\"");
+        serial = SERIAL.equals(mode);
+
+        /* Keys we would silently ignore, depending on the execution mode */
+        for (String ignored: serial ? new String[] { RETENTION_TIME, STALE_TIME, MAX_SIZE } : new String[] { MAX_IN_FLIGHT }) {
+            if (configurations.get(ignored) != null)
+                throw new IllegalArgumentException("Key \"" + ignored + "\" not supported in execution mode \"" + mode + "\"");
+        }
+
+        maxInFlight   = configurations.validate(MAX_IN_FLIGHT,  Integer.MAX_VALUE, (int value) -> value >= 1);
+        final int rate  = configurations.validate(RATE_LIMIT,   0,                 (int value) -> value >= 0);
+        final int burst = configurations.validate(RATE_BURST,   Math.max(1, rate), (int value) -> value >= 1);
+
+        /* Generic cell rate: one task every interval, bursts ahead of time */
+        interval = rate == 0 ? 0 : 1000000000L / rate;
+        tolerance = interval * (burst - 1);
+        limited = (maxInFlight < Integer.MAX_VALUE) || (rate > 0);
+
+        final String overLimit = configurations.get(OVER_LIMIT, FAIL_FAST);
+        if (! (FAIL_FAST.equals(overLimit) || QUEUE.equals(overLimit)))
+            throw new IllegalArgumentException("Invalid over limit policy \"" + overLimit + "\"");
+        queueOverLimit = QUEUE.equals(overLimit);
+
+        log.debug("Executor[%s] execution mode: %s", name, mode);
+        log.debug("Executor[%s] retention time: %d ms", name, retentionTime / 1000000);
+        log.debug("Executor[%s]     stale time: %d ms", name, staleTime / 1000000);
+        log.debug("Executor[%s]       max size: %d results", name, maxSize);
+        if (limited) {
+            log.debug("Executor[%s]  max in flight: %d tasks per key", name, maxInFlight);
+            log.debug("Executor[%s]     rate limit: %d tasks per second per key (burst %d)", name, rate, burst);
+            log.debug("Executor[%s]     over limit: %s", name, overLimit);
+        }
     }
 
     public <T> NotifyingFuture<?> run(K key, Runnable runnable) {
         return call(key, () -> { runnable.run(); return null; });
     }
 
+    /**
+     * Call the specified {@link Callable} unless a task for the same key is
+     * already running (or its result is retained), in which case the
+     * {@link NotifyingFuture} of the existing task is returned.
+     * <p>
+     * In <em>serial</em> mode, the task is queued after all other tasks for
+     * the same key, and the returned {@link NotifyingFuture} fails with a
+     * {@link RejectedExecutionException} if it could not be executed.
+     * <p>
+     * This never locks: a new (not yet executed) future is atomically
+     * installed for its key, and only the caller winning the installation
+     * executes it, so that unrelated keys never contend with each other.
+     * <p>
+     * When admission is limited and the task is over limit, this throws a
+     * {@link RejectedExecutionException} (in <em>serial</em> mode the future
+     * fails with it) unless over limit tasks are configured to be queued.
+     */
     @SuppressWarnings("unchecked")
     public <T> NotifyingFuture<T> call(K key, Callable<T> callable) {
+        if (serial) return enqueue(key, callable);
+        if (retentionTime + staleTime > 0) expire();
+
+        while (true) {
+
+            /* Check if we already have a future, without creating one */
+            final Entry<K, T> existing = (Entry<K, T>) entries.get(key);
+            if (existing != null) {
+                if (! existing.retained) {
+                    log.trace("Executor[%s]: queueing for key %s to existing future %s: %s", name, key, existing.future, callable);
+                    return existing.future;
+                }
+
+                final long age = System.nanoTime() - existing.completed;
+                if (age < retentionTime) {
+                    log.trace("Executor[%s]: returning retained future for key %s", name, key);
+                    return existing.future;
+                }
+                if (age < retentionTime + staleTime) {
+                    log.trace("Executor[%s]: returning stale future for key %s", name, key);
+                    refresh(existing, callable);
+                    return existing.future;
+                }
+
+                /* Expired, but not yet evicted: we'll replace it */
+                discard(existing);
+            }
+
+            /* Install a new future, unless someone else beat us to it */
+            final Entry<K, T> entry = new Entry<>(key, executor.prepare(SimpleExecutor.NORMAL_PRIORITY, callable));
+            if (existing == null ? entries.putIfAbsent(key, entry) != null : ! entries.replace(key, existing, entry)) continue;
+
+            /* We own the key, be notified when we're done and execute */
+            log.trace("Executor[%s]: key %s created a new future %s: %s", name, key, entry.future, callable);
+            entry.future.withConsumer((future) -> completed(entry, future));
+            try {
+                execute(key, entry.future);
+            } catch (RejectedExecutionException exception) {
+                entry.future.cancel(false);
+                throw exception;
+            }
+            return entry.future;
+        }
+    }
+
+    /* The number of keys with a result (retained or in flight) */
+    int size() {
+        return entries.size();
+    }
+
+    /* The number of results queued for expiry, including discarded ones */
+    int retainedSize() {
+        return retained.size();
+    }
+
+    /* ====================================================================== */
 
-        /* Check if we already have a future without synchronizing */
-        NotifyingFuture<T> future = (NotifyingFuture<T>) futures.get(key);
-        if (future != null) {
-            log.trace("Executor[%s]: queueing (1) for key %s to existing future %s: %s", name, key, future, callable);
-            return future;
+    /* Add a task to the serial queue for its key, creating one if needed */
+    private <T> NotifyingFuture<T> enqueue(K key, Callable<T> callable) {
+        final SimpleFuture<T> future = executor.prepare(SimpleExecutor.NORMAL_PRIORITY, callable);
+        if (! limited) {
+            serialize(key, future);
+        } else try {
+            admit(key, future, () -> serialize(key, future));
+        } catch (RejectedExecutionException exception) {
+            future.setException(exception);
         }
+        return future;
+    }
+
+    private void serialize(K key, SimpleFuture<?> future) {
+        while (! queues.computeIfAbsent(key, SerialQueue::new).add(future)) {
+            log.trace("Executor[%s]: serial queue for key %s discarded, retrying", name, key);
+        }
+    }
+
+    /* Execute a future for a key, subject to the key's admission limits */
+    private void execute(K key, SimpleFuture<?> future) {
+        if (limited) admit(key, future, () -> executor.execute(future));
+        else executor.execute(future);
+    }
+
+    private void admit(K key, SimpleFuture<?> future, Runnable start) {
+        while (! limiters.computeIfAbsent(key, Limiter::new).admit(future, start)) {
+            log.trace("Executor[%s]: limiter for key %s discarded, retrying", name, key);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private void completed(Entry<K, ?> entry, Future<?> future) {
+        if ((retentionTime + staleTime == 0) || (! succeeded(future))) {
+            entries.remove(entry.key, entry);
+        } else {
+            retain(entry);
+        }
+    }
+
+    /* Refresh a stale entry, unless someone else is already doing it */
+    private <T> void refresh(Entry<K, T> stale, Callable<T> callable) {
+        if (! stale.refreshing.compareAndSet(false, true)) return;
+
+        final Entry<K, T> entry = new Entry<>(stale.key, executor.prepare(SimpleExecutor.NORMAL_PRIORITY, callable));
+        entry.future.withConsumer((future) -> {
+            if (succeeded(future) && entries.replace(stale.key, stale, entry)) {
+                discard(stale);
+                retain(entry);
+            } else {
+                stale.refreshing.set(false);
+            }
+        });
 
-        synchronized (this) {
-            /* Recheck synchronized */
-            future = (NotifyingFuture<T>) futures.get(key);
-            if (future != null) {
-                log.trace("Executor[%s]: queueing (2) for key %s to existing future %s: %s", name, key, future, callable);
-                return future;
+        try {
+            execute(stale.key, entry.future);
+        } catch (RejectedExecutionException exception) {
+            log.debug("Executor[%s]: unable to refresh key %s", name, stale.key);
+            entry.future.cancel(false);
+        }
+    }
+
+    /* Retain a successful result, and expunge old (or too many) results */
+    private void retain(Entry<K, ?> entry) {
+        entry.completed = System.nanoTime();
+        entry.retained = true;
+        retainedCount.incrementAndGet();
+        retained.add(entry);
+        expire();
+    }
+
+    /* Retained in order of completion, the oldest are always first */
+    private void expire() {
+        while (true) {
+            final Entry<K, ?> oldest = retained.peek();
+            if (oldest == null) return;
+
+            if (! oldest.discarded.get()) {
+                final boolean expired = System.nanoTime() - oldest.completed >= retentionTime + staleTime;
+                if ((! expired) && (retainedCount.get() <= maxSize)) return;
+                if (discard(oldest)) entries.remove(oldest.key, oldest);
             }
 
-            /* Create a new future and be notified when we're done */
-            future = executor.call(callable).withConsumer((f) -> futures.remove(key));
-            log.trace("Executor[%s]: key %s created a new future %s: %s", name, key, future, callable);
-            futures.put(key, future);
-            return future;
+            /* The head of the queue, so this is cheap */
+            if (retained.remove(oldest)) discardedCount.decrementAndGet();
+        }
+    }
+
+    /*
+     * Stop counting a retained entry (expired, evicted or replaced), exactly
+     * once: replaced entries are left in the queue until they reach its head,
+     * unless too many of them accumulate behind live ones.
+     */
+    private boolean discard(Entry<K, ?> entry) {
+        if (! entry.discarded.compareAndSet(false, true)) return false;
+        retainedCount.decrementAndGet();
+
+        if (discardedCount.incrementAndGet() > Math.max(16, retainedCount.get())) {
+            discardedCount.set(0);
+            retained.removeIf((discarded) -> discarded.discarded.get());
+        }
+        return true;
+    }
+
+    private static boolean succeeded(Future<?> future) {
+        try {
+            future.get();
+            return true;
+        } catch (Exception exception) {
+            return false;
         }
     }
 
+    /* ====================================================================== */
+
+    /*
+     * The tasks for a key in serial mode: whoever takes the number of pending
+     * tasks from zero to one schedules the queue on our executor, and every
+     * time the queue runs it executes a single task and schedules itself
+     * again if more tasks are pending. Once no more tasks are pending, the
+     * queue is closed (so no tasks can be added) and discarded.
+     */
+    private final class SerialQueue implements Runnable {
+
+        private final ConcurrentLinkedQueue<SimpleFuture<?>> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final K key;
+
+        private SerialQueue(K key) {
+            this.key = key;
+        }
+
+        private boolean add(SimpleFuture<?> task) {
+            int count;
+            do {
+                count = pending.get();
+                if (count == CLOSED) return false;
+            } while (! pending.compareAndSet(count, count + 1));
+
+            tasks.add(task);
+            if (count == 0) schedule();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            take().run();
+            if (next()) schedule();
+        }
+
+        private void schedule() {
+            while (true) try {
+                executor.execute(this);
+                return;
+            } catch (RejectedExecutionException exception) {
+                log.debug("Executor[%s]: unable to execute task for key %s", name, key);
+                take().setException(exception);
+                if (! next()) return;
+            }
+        }
+
+        /* Tasks are counted before being added, they might not be there yet */
+        private SimpleFuture<?> take() {
+            SimpleFuture<?> task;
+            while ((task = tasks.poll()) == null) Thread.yield();
+            return task;
+        }
+
+        /*
+         * Whether more tasks are pending, or we were closed and discarded:
+         * we close straight from our own last task, as once the count drops
+         * to zero a concurrent add() would schedule another runner.
+         */
+        private boolean next() {
+            if (pending.compareAndSet(1, CLOSED)) {
+                queues.remove(key, this);
+                return false;
+            }
+            pending.decrementAndGet();
+            return true;
+        }
+    }
+
+    /*
+     * The admission state for a key: the number of tasks in flight, and the
+     * "theoretical arrival time" of the generic cell rate algorithm (a token
+     * bucket tracked as a single timestamp, full when not in the future).
+     * Tasks over limit wait in a queue, drained whenever a task completes or
+     * (for rates) by a timer. Once nothing is in flight or queued and the
+     * bucket is full, the limiter is closed (so no tasks can be admitted)
+     * and discarded.
+     */
+    private final class Limiter {
+
+        private static final int ADMITTED = 0;
+        private static final int LIMITED = 1;
+        private static final int DISCARDED = 2;
+
+        private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final K key;
+
+        private Limiter(K key) {
+            this.key = key;
+        }
+
+        /* Admit, queue or reject a task, returning false if discarded */
+        private boolean admit(SimpleFuture<?> future, Runnable start) {
+            /* Never overtake queued tasks */
+            if (queueOverLimit && (! pending.isEmpty())) return queue(new Pending(future, start));
+
+            switch (acquire()) {
+                case ADMITTED:
+                    start(future, start);
+                    return true;
+                case DISCARDED:
+                    return false;
+                default:
+                    if (queueOverLimit) return queue(new Pending(future, start));
+                    throw new RejectedExecutionException("Key " + key + " over limit");
+            }
+        }
+
+        private boolean queue(Pending task) {
+            log.trace("Executor[%s]: key %s over limit, queueing %s", name, key, task.future);
+            pending.add(task);
+
+            /* Closed in the meantime? If we can take our task back, retry */
+            if ((inFlight.get() == CLOSED) && pending.remove(task)) return false;
+            drain();
+            return true;
+        }
+
+        private int acquire() {
+            int count;
+            do {
+                count = inFlight.get();
+                if (count == CLOSED) return DISCARDED;
+                if (count >= maxInFlight) return LIMITED;
+            } while (! inFlight.compareAndSet(count, count + 1));
+
+            if (interval == 0) return ADMITTED;
+
+            /* Admitted unless too far ahead of the theoretical arrival time */
+            final long now = System.nanoTime();
+            while (true) {
+                final long arrival = this.arrival.get();
+                final long admitted = arrival - now > 0 ? arrival : now;
+                if (admitted - now > tolerance) {
+                    inFlight.decrementAndGet();
+                    schedule(admitted - tolerance - now);
+                    return LIMITED;
+                }
+                if (this.arrival.compareAndSet(arrival, admitted + interval)) return ADMITTED;
+            }
+        }
+
+        private void start(SimpleFuture<?> future, Runnable start) {
+            future.withConsumer((completed) -> release());
+            start.run();
+        }
+
+        private void release() {
+            inFlight.decrementAndGet();
+            drain();
+            evict();
+        }
+
+        /* Admit as many queued tasks as our limits allow */
+        private void drain() {
+            while (! pending.isEmpty()) {
+                if (acquire() != ADMITTED) return;
+
+                final Pending task = pending.poll();
+                if (task == null) {
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+
+                try {
+                    start(task.future, task.start);
+                } catch (RejectedExecutionException exception) {
+                    log.debug("Executor[%s]: unable to execute task for key %s", name, key);
+                    task.future.setException(exception);
+                }
+            }
+        }
+
+        /* Check again once the bucket has tokens (or is full), never on the timer's thread */
+        private void schedule(long delay) {
+            if (! scheduled.compareAndSet(false, true)) return;
+            SharedTimer.TIMER.schedule(() -> {
+                try {
+                    executor.execute(() -> {
+                        scheduled.set(false);
+                        drain();
+                        evict();
+                    });
+                } catch (RejectedExecutionException exception) {
+                    log.debug("Executor[%s]: unable to check limits for key %s, retrying", name, key);
+                    scheduled.set(false);
+                    schedule(Math.max(delay, 1000000L));
+                }
+            }, Duration.ofNanos(delay));
+        }
+
+        private void evict() {
+            if ((inFlight.get() != 0) || (! pending.isEmpty())) return;
+
+            if (interval > 0) {
+                final long remaining = arrival.get() - System.nanoTime();
+                if (remaining > 0) {
+                    schedule(remaining);
+                    return;
+                }
+            }
+
+            if (! inFlight.compareAndSet(0, CLOSED)) return;
+
+            /* Someone queued a task before noticing we were closing */
+            if (! pending.isEmpty()) {
+                inFlight.set(0);
+                drain();
+                evict();
+                return;
+            }
+
+            log.trace("Executor[%s]: key %s idle, discarding limiter", name, key);
+            limiters.remove(key, this);
+        }
+    }
+
+    private static final class Pending {
+
+        private final SimpleFuture<?> future;
+        private final Runnable start;
+
+        private Pending(SimpleFuture<?> future, Runnable start) {
+            this.future = future;
+            this.start = start;
+        }
+    }
+
+    private static final class Entry<K, T> {
+
+        private final AtomicBoolean discarded = new AtomicBoolean();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private final SimpleFuture<T> future;
+        private final K key;
+
+        private volatile boolean retained;
+        private long completed;
+
+        private Entry(K key, SimpleFuture<T> future) {
+            this.future = future;
+            this.key = key;
+        }
+    }
 }
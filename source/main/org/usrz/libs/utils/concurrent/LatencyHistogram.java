@@ -0,0 +1,143 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies (in nanoseconds) recorded in
+ * power-of-two buckets, trading precision (percentiles are reported as the
+ * upper bound of their bucket) for constant, allocation-free recording.
+ * <p>
+ * Each bucket is a {@link LongAdder}, striped under contention, so that
+ * threads recording concurrently do not all update the same cache lines.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder total = new LongAdder();
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Create a new, empty {@link LatencyHistogram}.
+     */
+    public LatencyHistogram() {
+        for (int x = 0; x < BUCKETS; x ++) buckets[x] = new LongAdder();
+    }
+
+    /**
+     * Record the specified latency, in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+        total.add(nanos);
+        count.increment();
+        if (nanos > max.get()) max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Return an immutable {@link Snapshot} of this {@link LatencyHistogram}.
+     */
+    public Snapshot snapshot() {
+        final long[] buckets = new long[BUCKETS];
+        for (int x = 0; x < BUCKETS; x ++) buckets[x] = this.buckets[x].sum();
+        return new Snapshot(buckets, count.sum(), total.sum(), max.get());
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * An immutable snapshot of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot {
+
+        private final long[] buckets;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] buckets, long count, long total, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * Return the number of latencies recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Return the sum of all latencies recorded, in nanoseconds.
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Return the mean of all latencies recorded, in nanoseconds.
+         */
+        public long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * Return the maximum latency recorded, in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Return the (upper bound of the) specified percentile of all
+         * latencies recorded, in nanoseconds.
+         *
+         * @param percentile A percentile between 0 and 100.
+         */
+        public long getPercentile(double percentile) {
+            if ((percentile < 0) || (percentile > 100)) throw new IllegalArgumentException("Invalid percentile " + percentile);
+
+            long total = 0;
+            for (long bucket: buckets) total += bucket;
+            if (total == 0) return 0;
+
+            final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int x = 0; x < buckets.length; x ++) {
+                seen += buckets[x];
+                /* The upper bound of the last buckets does not fit a long */
+                if (seen >= rank) return Math.min(max, x >= 62 ? Long.MAX_VALUE : (2L << x) - 1);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%dns p50=%dns p99=%dns max=%dns",
+                                 count, getMean(), getPercentile(50), getPercentile(99), max);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.Check;
+
+/**
+ * A wrapper around a {@link SimpleExecutor} coalescing small submissions.
+ * <p>
+ * Items submitted for the same key are collected in a lock-free buffer and
+ * handed to a <em>sink</em> all together, as a single task, as soon as the
+ * buffer holds <em>batch size</em> items or <em>max delay</em> passed since
+ * the first item was submitted, whichever comes first.
+ * <p>
+ * Each submission returns its own {@link NotifyingFuture}, completed when
+ * the sink has processed the whole batch (or failed if the sink failed, or
+ * if the task processing the batch was rejected or cancelled).
+ * When batching {@link Runnable}s (see {@link #forRunnables(SimpleExecutor,
+ * int, Duration)}) each runnable is executed, and its future completed,
+ * independently from the others in the same batch.
+ * <p>
+ * Batches are flushed after <em>max delay</em> by a bounded pool of daemon
+ * threads (one per processor, at least two) fed by the timer shared by all
+ * instances, so that a saturated executor (blocking or running tasks in the
+ * caller) never stalls the timer. Once all flushing threads are blocked,
+ * further flushes wait for one of them to be available.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <K> The type of the keys batches are collected for.
+ * @param <I> The type of the items in each batch.
+ */
+public class MicroBatchingExecutor<K, I> {
+
+    /* Marks a batch as closed, no more items can be added to it */
+    private static final int CLOSED = 0x80000000;
+
+    /* Flushes blocking on a saturated executor hold a thread each, but never more */
+    private static final Executor FLUSHER = SharedTimer.pool(MicroBatchingExecutor.class.getSimpleName() + "[Flusher]",
+                                                             Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private final ConcurrentHashMap<K, Batch> batches = new ConcurrentHashMap<>();
+    private final Processor<K, I> processor;
+    private final SimpleExecutor executor;
+    private final Executor notifier;
+    private final Duration maxDelay;
+    private final int batchSize;
+    private final Log log = new Log();
+    private final String name;
+
+    /**
+     * Create a new {@link MicroBatchingExecutor} handing batches of items to
+     * the specified sink.
+     *
+     * @param executor The {@link SimpleExecutor} running the sink.
+     * @param batchSize The number of items triggering a batch.
+     * @param maxDelay The maximum time an item waits for its batch to fill.
+     * @param sink The {@link BiConsumer} processing each batch.
+     */
+    public MicroBatchingExecutor(SimpleExecutor executor, int batchSize, Duration maxDelay, BiConsumer<K, List<I>> sink) {
+        this(executor, batchSize, maxDelay, together(Check.notNull(sink, "Null sink")));
+    }
+
+    private MicroBatchingExecutor(SimpleExecutor executor, int batchSize, Duration maxDelay, Processor<K, I> processor) {
+        if (batchSize < 1) throw new IllegalArgumentException("Invalid batch size " + batchSize);
+        Check.notNull(maxDelay, "Null max delay");
+        if (maxDelay.isNegative()) throw new IllegalArgumentException("Negative max delay " + maxDelay);
+
+        this.executor = Check.notNull(executor, "Null executor");
+        this.notifier = executor.notifier();
+        this.name = executor.getName();
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.processor = processor;
+    }
+
+    /**
+     * Create a new {@link MicroBatchingExecutor} running batches of
+     * {@link Runnable}s as a single task.
+     */
+    public static <K> MicroBatchingExecutor<K, Runnable> forRunnables(SimpleExecutor executor, int batchSize, Duration maxDelay) {
+        return new MicroBatchingExecutor<K, Runnable>(executor, batchSize, maxDelay, individually());
+    }
+
+    /* Hand all items to the sink together, completing all their futures */
+    private static <K, I> Processor<K, I> together(BiConsumer<K, List<I>> sink) {
+        return (key, items) -> {
+            final List<I> list = new ArrayList<>(items.size());
+            for (Item<I> item: items) list.add(item.item);
+            try {
+                sink.accept(key, list);
+                for (Item<I> item: items) item.future.set(null);
+            } catch (Throwable throwable) {
+                for (Item<I> item: items) item.future.setException(throwable);
+            }
+        };
+    }
+
+    /* Run each runnable, completing its own future */
+    private static <K> Processor<K, Runnable> individually() {
+        return (key, items) -> {
+            for (Item<Runnable> item: items) try {
+                item.item.run();
+                item.future.set(null);
+            } catch (Throwable throwable) {
+                item.future.setException(throwable);
+            }
+        };
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Add the specified item to the current batch for the given key.
+     */
+    public NotifyingFuture<?> submit(K key, I item) {
+        Check.notNull(key, "Null key");
+        final Item<I> entry = new Item<>(Check.notNull(item, "Null item"), new SettableNotifyingFuture<>(notifier));
+
+        while (true) {
+            final Batch batch = batches.computeIfAbsent(key, (k) -> new Batch(k));
+            final int index = batch.reserve();
+
+            /* Closed or full, make sure a new batch gets created */
+            if (index < 0) {
+                batches.remove(key, batch);
+                continue;
+            }
+
+            batch.items.set(index, entry);
+            if (index == 0) batch.timeout = SharedTimer.TIMER.schedule(() -> FLUSHER.execute(() -> flush(batch)), maxDelay);
+            if (index == batchSize - 1) flush(batch);
+            return entry.future;
+        }
+    }
+
+    /**
+     * Process the current batch for the given key without further waiting.
+     */
+    public void flush(K key) {
+        final Batch batch = batches.get(Check.notNull(key, "Null key"));
+        if (batch != null) flush(batch);
+    }
+
+    /* ====================================================================== */
+
+    private void flush(Batch batch) {
+        final int size = batch.close();
+        if (size < 0) return;
+
+        batches.remove(batch.key, batch);
+        final NotifyingFuture<?> timeout = batch.timeout;
+        if (timeout != null) timeout.cancel(false);
+        if (size == 0) return;
+
+        log.trace("Executor[%s]: flushing %d items for key %s", name, size, batch.key);
+        try {
+            /* Items not completed by a failed or cancelled task fail with it */
+            executor.run(() -> processor.process(batch.key, batch.items(size))).withConsumer((task) -> {
+                try {
+                    task.get();
+                } catch (Throwable throwable) {
+                    for (Item<I> item: batch.items(size)) item.future.fail(throwable);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            for (Item<I> item: batch.items(size)) item.future.setException(exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* How the items in a batch are processed, and their futures completed */
+    private interface Processor<K, I> {
+
+        void process(K key, List<Item<I>> items);
+
+    }
+
+    private final class Batch {
+
+        private final AtomicInteger state = new AtomicInteger();
+        private final AtomicReferenceArray<Item<I>> items = new AtomicReferenceArray<>(batchSize);
+        private volatile NotifyingFuture<?> timeout;
+        private final K key;
+
+        private Batch(K key) {
+            this.key = key;
+        }
+
+        /* Reserve a slot in this batch, or -1 if closed or full */
+        private int reserve() {
+            while (true) {
+                final int state = this.state.get();
+                if (((state & CLOSED) != 0) || (state >= batchSize)) return -1;
+                if (this.state.compareAndSet(state, state + 1)) return state;
+            }
+        }
+
+        /* Close this batch, returning its size or -1 if already closed */
+        private int close() {
+            final int state = this.state.getAndUpdate((value) -> value | CLOSED);
+            return (state & CLOSED) != 0 ? -1 : state;
+        }
+
+        /* Slots are reserved before being filled, wait for their items */
+        private List<Item<I>> items(int size) {
+            final List<Item<I>> list = new ArrayList<>(size);
+            for (int x = 0; x < size; x ++) {
+                Item<I> item;
+                while ((item = items.get(x)) == null) Thread.yield();
+                list.add(item);
+            }
+            return list;
+        }
+    }
+
+    private static final class Item<I> {
+
+        private final SettableNotifyingFuture<Object> future;
+        private final I item;
+
+        private Item(I item, SettableNotifyingFuture<Object> future) {
+            this.future = future;
+            this.item = item;
+        }
+    }
+}
@@ -15,12 +15,195 @@
  * ========================================================================== */
 package org.usrz.libs.utils.concurrent;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * A {@link Future} notifying {@link Consumer}s upon completion.
+ * <p>
+ * The composition methods defined here never block: continuations are
+ * registered as consumers, and therefore run on the <em>notifier</em> of the
+ * {@link SimpleExecutor} which created the original {@link Future}, which is
+ * inherited by all derived {@link NotifyingFuture}s.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of the result of this {@link Future}.
+ */
 public interface NotifyingFuture<T> extends Future<T>, Delegate<T> {
 
     @Override
     public NotifyingFuture<T> withConsumer(Consumer<Future<T>> consumer);
 
+    /* ====================================================================== */
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the result of the
+     * specified {@link Function} applied to the result of this one.
+     */
+    default <R> NotifyingFuture<R> thenApply(Function<? super T, ? extends R> function) {
+        Objects.requireNonNull(function, "Null function");
+        final SettableNotifyingFuture<R> result = SettableNotifyingFuture.derive(this);
+        withConsumer((future) -> result.complete(future, function));
+        return result;
+    }
+
+    /**
+     * Return a {@link NotifyingFuture} completed by the {@link NotifyingFuture}
+     * returned by the specified {@link Function} applied to the result of
+     * this one.
+     */
+    default <R> NotifyingFuture<R> thenCompose(Function<? super T, ? extends NotifyingFuture<R>> function) {
+        Objects.requireNonNull(function, "Null function");
+        final SettableNotifyingFuture<R> result = SettableNotifyingFuture.derive(this);
+        withConsumer((future) -> {
+            final NotifyingFuture<R> next;
+            try {
+                next = Objects.requireNonNull(function.apply(future.get()), "Null future returned");
+            } catch (Throwable throwable) {
+                result.fail(throwable);
+                return;
+            }
+            next.withConsumer((nextFuture) -> result.complete(nextFuture, Function.identity()));
+        });
+        return result;
+    }
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the result of this one,
+     * or, on failure or cancellation, with the result of the specified
+     * {@link Function} applied to the failure.
+     */
+    default NotifyingFuture<T> exceptionally(Function<Throwable, ? extends T> function) {
+        Objects.requireNonNull(function, "Null function");
+        final SettableNotifyingFuture<T> result = SettableNotifyingFuture.derive(this);
+        withConsumer((future) -> {
+            try {
+                result.set(future.get());
+            } catch (Throwable throwable) {
+                try {
+                    result.set(function.apply(SettableNotifyingFuture.cause(throwable)));
+                } catch (Throwable failure) {
+                    result.fail(failure);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return a {@link CompletableFuture} completed with the outcome of this
+     * {@link NotifyingFuture}.
+     */
+    default CompletableFuture<T> toCompletableFuture() {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        withConsumer((future) -> {
+            try {
+                result.complete(future.get());
+            } catch (CancellationException exception) {
+                result.cancel(false);
+            } catch (Throwable throwable) {
+                result.completeExceptionally(SettableNotifyingFuture.cause(throwable));
+            }
+        });
+        return result;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the outcome of the
+     * specified {@link CompletionStage}.
+     */
+    public static <T> NotifyingFuture<T> from(CompletionStage<T> stage) {
+        final SettableNotifyingFuture<T> result = new SettableNotifyingFuture<>();
+        stage.whenComplete((value, throwable) -> {
+            if (throwable == null) result.set(value);
+            else result.fail(throwable);
+        });
+        return result;
+    }
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the results of all the
+     * specified {@link NotifyingFuture}s (in order), or with the first failure
+     * encountered.
+     */
+    @SafeVarargs
+    public static <T> NotifyingFuture<List<T>> allOf(NotifyingFuture<? extends T>... futures) {
+        /* Copied, never exposing the (generic) varargs array itself */
+        final List<NotifyingFuture<? extends T>> list = new ArrayList<>(futures.length);
+        for (NotifyingFuture<? extends T> future: futures) list.add(future);
+        return allOf(list);
+    }
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the results of all the
+     * specified {@link NotifyingFuture}s (in order), or with the first failure
+     * encountered.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> NotifyingFuture<List<T>> allOf(Collection<? extends NotifyingFuture<? extends T>> futures) {
+        if (futures.isEmpty()) return Immediate.immediate(Collections.emptyList());
+
+        final SettableNotifyingFuture<List<T>> result = SettableNotifyingFuture.derive(futures.iterator().next());
+        final Object[] results = new Object[futures.size()];
+        final AtomicInteger remaining = new AtomicInteger(results.length);
+
+        int index = 0;
+        for (NotifyingFuture<? extends T> future: futures) {
+            final int position = index ++;
+            ((NotifyingFuture<T>) future).withConsumer((done) -> {
+                try {
+                    results[position] = done.get();
+                } catch (Throwable throwable) {
+                    result.fail(throwable);
+                    return;
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    final List<T> list = new ArrayList<>(results.length);
+                    for (Object object: results) list.add((T) object);
+                    result.set(list);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the outcome of the first
+     * of the specified {@link NotifyingFuture}s to complete.
+     */
+    @SafeVarargs
+    public static <T> NotifyingFuture<T> anyOf(NotifyingFuture<? extends T>... futures) {
+        /* Copied, never exposing the (generic) varargs array itself */
+        final List<NotifyingFuture<? extends T>> list = new ArrayList<>(futures.length);
+        for (NotifyingFuture<? extends T> future: futures) list.add(future);
+        return anyOf(list);
+    }
+
+    /**
+     * Return a {@link NotifyingFuture} completed with the outcome of the first
+     * of the specified {@link NotifyingFuture}s to complete.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> NotifyingFuture<T> anyOf(Collection<? extends NotifyingFuture<? extends T>> futures) {
+        if (futures.isEmpty()) throw new IllegalArgumentException("No futures specified");
+
+        final SettableNotifyingFuture<T> result = SettableNotifyingFuture.derive(futures.iterator().next());
+        for (NotifyingFuture<? extends T> future: futures) {
+            ((NotifyingFuture<T>) future).withConsumer((done) -> result.complete(done, Function.identity()));
+        }
+        return result;
+    }
+
 }
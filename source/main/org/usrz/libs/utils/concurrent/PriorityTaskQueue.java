@@ -0,0 +1,218 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * A (softly) bounded {@link PriorityBlockingQueue} ordering tasks by
+ * priority, in FIFO order for tasks with the same priority.
+ * <p>
+ * To avoid starvation, tasks <em>age</em>: each priority level is worth a
+ * fixed amount of waiting time, so that a task submitted with priority
+ * <em>p</em> is ordered as if submitted <em>aging</em> earlier than a task
+ * with priority <em>p - 1</em>. Lower priority tasks are therefore delayed by
+ * at most <em>aging</em> times the difference in priority.
+ * <p>
+ * Tasks not {@linkplain Prioritized prioritized} are queued wrapped, but
+ * are {@linkplain #remove(Object) removed} and {@linkplain #drainTo(Collection)
+ * drained} as the original tasks, as {@link ThreadPoolExecutor} expects.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+class PriorityTaskQueue extends PriorityBlockingQueue<Runnable> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private long sequence;
+
+    PriorityTaskQueue(int capacity, Duration aging) {
+        super(11, comparator(aging.toNanos()));
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(Runnable runnable) {
+        /* Non prioritized tasks get the default priority */
+        final Prioritized prioritized = runnable instanceof Prioritized ?
+                (Prioritized) runnable : new PrioritizedRunnable(runnable);
+
+        /* Check the capacity and insert atomically, or we might overflow */
+        synchronized (this) {
+            if (size() >= capacity) return false;
+            prioritized.sequence(sequence ++);
+            return super.offer((Runnable) prioritized);
+        }
+    }
+
+    /* Only used when blocking producers on saturation, so parking is fine */
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (! offer(runnable)) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+            if (Thread.currentThread().isInterrupted()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean add(Runnable runnable) {
+        if (offer(runnable)) return true;
+        throw new IllegalStateException("Queue full");
+    }
+
+    @Override
+    public void put(Runnable runnable) {
+        add(runnable);
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        if (super.remove(object)) return true;
+        if (object instanceof Prioritized) return false;
+
+        for (Runnable runnable: this) {
+            if ((runnable instanceof PrioritizedRunnable) && (((PrioritizedRunnable) runnable).runnable == object)) {
+                return super.remove(runnable);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+        if (collection == this) throw new IllegalArgumentException("Can not drain to self");
+
+        final List<Runnable> drained = new ArrayList<>();
+        final int count = super.drainTo(drained, maxElements);
+        for (Runnable runnable: drained) collection.add(unwrap(runnable));
+        return count;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(0, capacity - size());
+    }
+
+    /* The matching task which would run last, without removing it */
+    Runnable last(Predicate<Runnable> predicate) {
+        final Comparator<? super Runnable> comparator = comparator();
+        Runnable last = null;
+        for (Runnable runnable: this) {
+            if (! predicate.test(runnable)) continue;
+            if ((last == null) || (comparator.compare(runnable, last) > 0)) last = runnable;
+        }
+        return last;
+    }
+
+    /* ====================================================================== */
+
+    private static Runnable unwrap(Runnable runnable) {
+        return runnable instanceof PrioritizedRunnable ? ((PrioritizedRunnable) runnable).runnable : runnable;
+    }
+
+    private static Comparator<Runnable> comparator(long aging) {
+        return (runnable1, runnable2) -> {
+            final Prioritized prioritized1 = (Prioritized) runnable1;
+            final Prioritized prioritized2 = (Prioritized) runnable2;
+
+            /* Aged submission time (submitted - priority * aging): the lower, the sooner */
+            final long elapsed = prioritized1.submitted() - prioritized2.submitted();
+            final long boost = saturatedMultiply((long) prioritized1.priority() - prioritized2.priority(), aging);
+            final int result = Long.compare(elapsed, boost);
+            return result != 0 ? result : Long.compare(prioritized1.sequence(), prioritized2.sequence());
+        };
+    }
+
+    /* Extreme priorities (or aging) must never overflow and wrap around */
+    private static long saturatedMultiply(long difference, long aging) {
+        if ((aging != 0) && (Math.abs(difference) > Long.MAX_VALUE / aging)) return difference > 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+        return difference * aging;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * A task with a priority, higher values run sooner.
+     */
+    interface Prioritized {
+
+        int priority();
+
+        long submitted();
+
+        long sequence();
+
+        void sequence(long sequence);
+
+    }
+
+    private static final class PrioritizedRunnable implements Runnable, Prioritized {
+
+        private final long submitted = System.nanoTime();
+        private final Runnable runnable;
+        private long sequence;
+
+        private PrioritizedRunnable(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int priority() {
+            return SimpleExecutor.NORMAL_PRIORITY;
+        }
+
+        @Override
+        public long submitted() {
+            return submitted;
+        }
+
+        @Override
+        public long sequence() {
+            return sequence;
+        }
+
+        @Override
+        public void sequence(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
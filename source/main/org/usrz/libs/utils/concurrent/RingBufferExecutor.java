@@ -0,0 +1,343 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * A low-latency {@link java.util.concurrent.ExecutorService} handing tasks
+ * to a fixed number of threads through a preallocated ring of slots.
+ * <p>
+ * The ring has a power-of-two number of slots, each with its own sequence
+ * number telling whether it can be written (by producers) or read (by
+ * worker threads). Producers and workers claim slots by advancing their own
+ * cursor with a single CAS. Nothing is allocated when tasks are handed over.
+ * <p>
+ * Idle workers (and producers waiting for a free slot) either spin, yield
+ * or park according to the configured {@link WaitStrategy}. When the ring is
+ * full, the configured {@link Saturation} policy either rejects the task,
+ * runs it in the producer or waits (for a bounded time) for a free slot.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class RingBufferExecutor extends AbstractExecutorService {
+
+    /**
+     * What idle threads do while waiting for tasks (or free slots).
+     */
+    enum WaitStrategy {
+        /** Spin, lowest latency but needs a dedicated processor per thread. */
+        BUSY_SPIN,
+        /** Yield the processor to other threads while spinning. */
+        YIELD,
+        /** Spin for a while, then park until signalled. */
+        PARK
+    }
+
+    /**
+     * What producers do when the ring is full.
+     */
+    enum Saturation {
+        /** Reject the task straight away. */
+        FAIL_FAST,
+        /** Run the task in the producer thread. */
+        CALLER_RUNS,
+        /** Wait for a free slot, rejecting the task after a timeout. */
+        BLOCK
+    }
+
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+
+    /* How many times to spin before parking, and how long producers park */
+    private static final int SPINS = 100;
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private static final Log log = new Log(RingBufferExecutor.class);
+
+    private final ConcurrentLinkedQueue<Worker> sleepers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger producers = new AtomicInteger();
+    private final Sequence head = new Sequence();
+    private final Sequence tail = new Sequence();
+    private final AtomicLongArray sequences;
+    private final Runnable[] tasks;
+    private final int mask;
+
+    private final Saturation saturation;
+    private final WaitStrategy strategy;
+    private final long timeout;
+    private final CountDownLatch terminated;
+    private final Worker[] workers;
+
+    private volatile int state = RUNNING;
+
+    /* Set once the executor using us is created */
+    volatile ExecutorMetrics metrics;
+
+    RingBufferExecutor(int size, int threads, WaitStrategy strategy, Saturation saturation, Duration timeout, ThreadFactory factory) {
+        if ((size < 1) || (size > (1 << 30))) throw new IllegalArgumentException("Invalid ring size " + size);
+        if (threads < 1) throw new IllegalArgumentException("Invalid number of threads " + threads);
+        this.strategy = Objects.requireNonNull(strategy, "Null wait strategy");
+        this.saturation = Objects.requireNonNull(saturation, "Null saturation policy");
+        this.timeout = Objects.requireNonNull(timeout, "Null timeout").toNanos();
+
+        /* Two slots at least, or a released slot would look published */
+        final int capacity = size < 2 ? 2 : Integer.highestOneBit(size) == size ? size : Integer.highestOneBit(size) << 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int x = 0; x < capacity; x ++) sequences.set(x, x);
+        tasks = new Runnable[capacity];
+        mask = capacity - 1;
+
+        terminated = new CountDownLatch(threads);
+        workers = new Worker[threads];
+        for (int x = 0; x < threads; x ++) workers[x] = new Worker(factory);
+        for (Worker worker: workers) worker.thread.start();
+    }
+
+    /* ====================================================================== */
+
+    /* The number of tasks waiting in the ring */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /* The number of worker threads */
+    int threads() {
+        return workers.length;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void execute(Runnable runnable) {
+        Objects.requireNonNull(runnable, "Null runnable");
+
+        /* Counted, so that workers do not terminate while we publish */
+        producers.incrementAndGet();
+        try {
+            if (! offer(runnable)) saturated(runnable);
+        } finally {
+            producers.decrementAndGet();
+        }
+
+        /* Wake up a sleeping worker, if any */
+        if (strategy == WaitStrategy.PARK) for (Worker worker = sleepers.poll(); worker != null; worker = sleepers.poll()) {
+            if (worker.wake()) break;
+        }
+    }
+
+    /* The ring is full, apply our saturation policy */
+    private void saturated(Runnable runnable) {
+        final ExecutorMetrics metrics = this.metrics;
+        switch (saturation) {
+
+            case CALLER_RUNS:
+                if (metrics != null) metrics.callerRuns();
+                runnable.run();
+                return;
+
+            case BLOCK:
+                if (metrics != null) metrics.blocked();
+                final long deadline = System.nanoTime() + timeout;
+                int idle = 0;
+                while (System.nanoTime() - deadline < 0) {
+                    idle = idle(idle, true);
+                    if (offer(runnable)) return;
+                }
+                break;
+
+            default:
+                break;
+        }
+        throw new RejectedExecutionException("Ring full, unable to execute " + runnable);
+    }
+
+    private boolean offer(Runnable runnable) {
+        if (state != RUNNING) throw new RejectedExecutionException("Executor shut down, unable to execute " + runnable);
+
+        long position = tail.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+            if (difference < 0) return false; /* Full */
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    tasks[index] = runnable;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            }
+            position = tail.get();
+        }
+    }
+
+    private Runnable poll() {
+        long position = head.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference < 0) return null; /* Empty, or not yet published */
+
+            if ((difference == 0) && head.compareAndSet(position, position + 1)) {
+                final Runnable runnable = tasks[index];
+                tasks[index] = null;
+                sequences.lazySet(index, position + mask + 1);
+                return runnable;
+            }
+            position = head.get();
+        }
+    }
+
+    private int idle(int idle, boolean producer) {
+        switch (strategy) {
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (producer && (idle >= SPINS)) LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+                break;
+            default:
+                break;
+        }
+        return idle + 1;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void shutdown() {
+        if (state == RUNNING) state = SHUTDOWN;
+        for (Worker worker: workers) LockSupport.unpark(worker.thread);
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        state = STOP;
+        for (Worker worker: workers) LockSupport.unpark(worker.thread);
+
+        /* Never executed, so cancel what we can */
+        final List<Runnable> runnables = new ArrayList<>();
+        for (Runnable runnable = poll(); runnable != null; runnable = poll()) {
+            if (runnable instanceof Future) ((Future<?>) runnable).cancel(false);
+            runnables.add(runnable);
+        }
+        return runnables;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return state != RUNNING;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /* ====================================================================== */
+
+    private final class Worker implements Runnable {
+
+        private final AtomicBoolean parked = new AtomicBoolean();
+        private final Thread thread;
+
+        private Worker(ThreadFactory factory) {
+            thread = factory.newThread(this);
+        }
+
+        private boolean wake() {
+            if (! parked.compareAndSet(true, false)) return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                int idle = 0;
+                while (true) {
+                    final Runnable runnable = poll();
+                    if (runnable != null) {
+                        idle = 0;
+                        try {
+                            runnable.run();
+                        } catch (Throwable throwable) {
+                            log.error(throwable, "Exception running %s", runnable);
+                        }
+                        continue;
+                    }
+
+                    final int state = RingBufferExecutor.this.state;
+                    if ((state == STOP) || ((state == SHUTDOWN) && (producers.get() == 0) && (size() == 0))) break;
+
+                    if ((strategy == WaitStrategy.PARK) && (idle >= SPINS)) {
+                        park();
+                    } else {
+                        idle = idle(idle, false);
+                    }
+                }
+            } finally {
+                terminated.countDown();
+            }
+        }
+
+        /* Register as sleeping, re-check for tasks, and park */
+        private void park() {
+            parked.set(true);
+            sleepers.add(this);
+            if ((size() > 0) || (state != RUNNING)) {
+                parked.set(false);
+            } else {
+                while (parked.get() && (state == RUNNING)) LockSupport.park(this);
+                parked.set(false);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* A cursor padded to its own cache line, to avoid false sharing */
+    @SuppressWarnings({ "serial", "unused" })
+    private static final class Sequence extends AtomicLong {
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
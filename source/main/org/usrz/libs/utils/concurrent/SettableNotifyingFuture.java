@@ -0,0 +1,92 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * A {@link NotifyingFuture} explicitly completed by calling its
+ * {@link #set(Object)} or {@link #setException(Throwable)} methods.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of the result of this {@link Future}.
+ */
+public final class SettableNotifyingFuture<T> extends AbstractNotifyingFuture<T> {
+
+    /**
+     * Create a new {@link SettableNotifyingFuture} notifying its consumers
+     * on the thread completing it.
+     */
+    public SettableNotifyingFuture() {
+        this((runnable) -> runnable.run());
+    }
+
+    /**
+     * Create a new {@link SettableNotifyingFuture} notifying its consumers
+     * through the specified {@link Executor}.
+     */
+    public SettableNotifyingFuture(Executor notifier) {
+        super(notifier);
+    }
+
+    @Override
+    public boolean set(T result) {
+        return super.set(result);
+    }
+
+    @Override
+    public boolean setException(Throwable throwable) {
+        return super.setException(throwable);
+    }
+
+    /* ====================================================================== */
+
+    /* Create a future notifying its consumers like the specified one */
+    static <T> SettableNotifyingFuture<T> derive(Future<?> future) {
+        return future instanceof AbstractNotifyingFuture ?
+                new SettableNotifyingFuture<>(((AbstractNotifyingFuture<?>) future).notifier()) :
+                new SettableNotifyingFuture<>();
+    }
+
+    /* Complete with the mapped result of a done future, or its failure */
+    <S> boolean complete(Future<S> future, Function<? super S, ? extends T> function) {
+        try {
+            return set(function.apply(future.get()));
+        } catch (Throwable throwable) {
+            return fail(throwable);
+        }
+    }
+
+    /* Fail unwrapping execution exceptions, or cancel on cancellation */
+    boolean fail(Throwable throwable) {
+        if (throwable instanceof CancellationException) return cancel(false);
+        if (throwable instanceof InterruptedException) Thread.currentThread().interrupt();
+        return setException(cause(throwable));
+    }
+
+    /* Unwrap execution and completion exceptions */
+    static Throwable cause(Throwable throwable) {
+        if ((throwable instanceof ExecutionException) || (throwable instanceof CompletionException)) {
+            if (throwable.getCause() != null) return throwable.getCause();
+        }
+        return throwable;
+    }
+}
@@ -0,0 +1,60 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The single {@link HashedWheelTimer} shared by all the classes in this
+ * package needing one (deadlines, rate limits and batch delays), so that
+ * they all share one worker thread rather than keeping one each.
+ * <p>
+ * Tasks run on the timer's own thread, therefore they must only hand off
+ * their work (for example to a {@linkplain #pool(String, int) pool}), and
+ * never block or run anything else which might delay other timeouts.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class SharedTimer {
+
+    /* Millisecond resolution, rate limited tasks need it */
+    static final HashedWheelTimer TIMER = new HashedWheelTimer(SharedTimer.class.getSimpleName(),
+                                                               Duration.ofMillis(1), 512,
+                                                               (runnable) -> runnable.run());
+
+    private SharedTimer() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /* ====================================================================== */
+
+    /* A bounded pool of daemon threads for timed work, idle threads terminate */
+    static ThreadPoolExecutor pool(String name, int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            final Thread thread = new Thread(runnable, String.format("%s-%d", name, threadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+}
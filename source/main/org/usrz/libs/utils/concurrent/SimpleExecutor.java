@@ -15,94 +15,177 @@
  * ========================================================================== */
 package org.usrz.libs.utils.concurrent;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Consumer;
 
-import com.google.common.util.concurrent.SettableFuture;
 import com.google.inject.ProvidedBy;
 
 @ProvidedBy(SimpleExecutorProvider.class)
 public class SimpleExecutor {
 
+    /** The priority of tasks submitted without one. */
+    public static final int NORMAL_PRIORITY = 0;
+
     private final ExecutorService executor;
+    private final ExecutorMetrics metrics;
     private final Executor notifier;
+    private final int parallelism;
     private final String name;
 
     protected SimpleExecutor(String name, ExecutorService executor, Executor notifier) {
+        this(name, executor, notifier, Runtime.getRuntime().availableProcessors());
+    }
+
+    protected SimpleExecutor(String name, ExecutorService executor, Executor notifier, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Invalid parallelism " + parallelism);
         this.executor = Objects.requireNonNull(executor, "Null executor");
         this.notifier = Objects.requireNonNull(notifier, "Null notifier");
         this.name = name == null ? "Unknown" : name;
+        this.metrics = new ExecutorMetrics(this.name, executor);
+        this.parallelism = parallelism;
     }
 
     public String getName() {
         return name;
     }
 
+    /* The executor notifying consumers, for wrappers creating futures */
+    Executor notifier() {
+        return notifier;
+    }
+
+    /**
+     * Return the live {@link ExecutorMetrics} of this {@link SimpleExecutor},
+     * use {@link ExecutorMetrics#snapshot()} for a consistent view.
+     */
+    public ExecutorMetrics getMetrics() {
+        return metrics;
+    }
+
     public <T> NotifyingFuture<?> run(Runnable runnable) {
         return call(() -> { runnable.run(); return null; });
     }
 
     public <T> NotifyingFuture<T> call(Callable<T> callable) {
-        final SettableFuture<T> settableFuture = SettableFuture.create();
+        return call(NORMAL_PRIORITY, callable);
+    }
 
-        final Future<T> executingFuture = executor.submit(() -> {
-            try {
-                final T result = callable.call();
-                settableFuture.set(result);
-                return result;
-            } catch (Throwable throwable) {
-                settableFuture.setException(throwable);
-                throw new Exception(throwable);
-            }
-        });
-
-        return new NotifyingFuture<T>() {
-
-            @Override
-            public boolean cancel(boolean mayInterruptIfRunning) {
-                if (executingFuture.cancel(mayInterruptIfRunning)) {
-                    settableFuture.cancel(mayInterruptIfRunning);
-                    return true;
-                } else {
-                    return false;
-                }
-            }
+    /**
+     * Execute the specified {@link Runnable} with the given priority.
+     *
+     * @see #call(int, Callable)
+     */
+    public <T> NotifyingFuture<?> run(int priority, Runnable runnable) {
+        return call(priority, () -> { runnable.run(); return null; });
+    }
 
-            @Override
-            public boolean isCancelled() {
-                return settableFuture.isCancelled();
-            }
+    /**
+     * Execute the specified {@link Callable} with the given priority: higher
+     * values run sooner when this executor was configured with a priority
+     * queue, otherwise the priority is ignored.
+     */
+    public <T> NotifyingFuture<T> call(int priority, Callable<T> callable) {
+        final SimpleFuture<T> future = prepare(priority, callable);
+        execute(future);
+        return future;
+    }
 
-            @Override
-            public boolean isDone() {
-                return settableFuture.isCancelled();
-            }
+    /* Create a future for a task, to be passed to execute(...) later */
+    <T> SimpleFuture<T> prepare(int priority, Callable<T> callable) {
+        return new SimpleFuture<>(Objects.requireNonNull(callable, "Null callable"), priority, notifier, metrics);
+    }
 
-            @Override
-            public T get()
-            throws InterruptedException, ExecutionException {
-                return settableFuture.get();
-            }
+    /**
+     * Execute the specified {@link Callable} with a deadline, interrupting it
+     * if still running when the deadline passes.
+     *
+     * @see #call(Callable, Duration, boolean)
+     */
+    public <T> NotifyingFuture<T> call(Callable<T> callable, Duration deadline) {
+        return call(callable, deadline, true);
+    }
 
-            @Override
-            public T get(long timeout, TimeUnit unit)
-            throws InterruptedException, ExecutionException, TimeoutException {
-                return settableFuture.get(timeout, unit);
-            }
+    /**
+     * Execute the specified {@link Callable} with a deadline.
+     * <p>
+     * If the task has not completed within the given {@link Duration}, the
+     * returned {@link NotifyingFuture} fails with a {@link TimeoutException}
+     * and, when <em>interrupt</em> is <em>true</em>, the thread running the
+     * task is interrupted. Tasks still queued past their deadline are never
+     * executed.
+     */
+    public <T> NotifyingFuture<T> call(Callable<T> callable, Duration deadline, boolean interrupt) {
+        Objects.requireNonNull(deadline, "Null deadline");
+        if (deadline.isNegative()) throw new IllegalArgumentException("Negative deadline " + deadline);
+
+        final SimpleFuture<T> future = new SimpleFuture<>(Objects.requireNonNull(callable, "Null callable"), NORMAL_PRIORITY, notifier, metrics, deadline, interrupt);
+        DeadlineTimer.schedule(future, deadline);
+        try {
+            execute(future);
+        } catch (RejectedExecutionException exception) {
+            future.cancel(false);
+            throw exception;
+        }
+        return future;
+    }
+
+    /**
+     * Execute all the specified {@link Callable}s, failing the returned
+     * {@link NotifyingFuture} as soon as any of them fails.
+     *
+     * @see #callAll(Collection, boolean)
+     */
+    public <T> NotifyingFuture<List<T>> callAll(Collection<? extends Callable<T>> callables) {
+        return callAll(callables, true);
+    }
 
-            @Override
-            public NotifyingFuture<T> withConsumer(Consumer<Future<T>> consumer) {
-                settableFuture.addListener(() -> consumer.accept(settableFuture), notifier);
-                return this;
+    /**
+     * Execute all the specified {@link Callable}s, returning a single
+     * {@link NotifyingFuture} for all their results (in order).
+     * <p>
+     * Rather than queueing each task, up to <em>parallelism</em> runners are
+     * queued and cooperatively drain the whole batch.
+     * <p>
+     * When <em>failFast</em> is <em>true</em> the returned future fails with
+     * the first failure encountered and the remaining tasks are skipped,
+     * otherwise all tasks are executed and the future fails with a
+     * {@link BatchException} caused by the first failed task (in order),
+     * with all other failures {@linkplain Throwable#getSuppressed() suppressed}.
+     */
+    public <T> NotifyingFuture<List<T>> callAll(Collection<? extends Callable<T>> callables, boolean failFast) {
+        final BatchFuture<T> future = new BatchFuture<>(Objects.requireNonNull(callables, "Null callables"), failFast, notifier, metrics);
+        for (int x = 0; x < future.size(); x ++) metrics.submitted();
+
+        final int runners = Math.min(parallelism, future.size());
+        for (int x = 0; x < runners; x ++) {
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException exception) {
+                /* As long as one runner was accepted, the batch will complete */
+                if (x > 0) break;
+                for (int y = 0; y < future.size(); y ++) metrics.rejected();
+                throw exception;
             }
+        }
+        return future;
+    }
+
+    /* ====================================================================== */
 
-        };
+    void execute(Runnable runnable) {
+        metrics.submitted();
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException exception) {
+            metrics.rejected();
+            throw exception;
+        }
     }
 }
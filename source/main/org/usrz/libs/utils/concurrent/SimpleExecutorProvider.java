@@ -21,19 +21,34 @@ import static java.lang.Thread.NORM_PRIORITY;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import java.lang.annotation.Annotation;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.logging.Log;
@@ -48,6 +63,40 @@ public class SimpleExecutorProvider extends ConfigurableProvider<SimpleExecutor>
     public static final String THREAD_PRIORITY = "thread_priority";
     public static final String EXECUTOR_NAME = "executor_name";
     public static final String NOTIFIER_THREADS = "notifier_threads";
+    public static final String VIRTUAL_THREADS = "virtual_threads";
+    public static final String EXECUTOR_TYPE = "executor_type";
+    public static final String PARALLELISM = "parallelism";
+    public static final String ADAPTIVE_SIZING = "adaptive_sizing";
+    public static final String ADAPTIVE_INTERVAL = "adaptive_interval";
+    public static final String ADAPTIVE_WAIT_TIME = "adaptive_wait_time";
+    public static final String QUEUE_TYPE = "queue_type";
+    public static final String PRIORITY_AGING = "priority_aging";
+    public static final String REJECTION_POLICY = "rejection_policy";
+    public static final String REJECTION_TIMEOUT = "rejection_timeout";
+    public static final String NOTIFIER_TYPE = "notifier_type";
+    public static final String NOTIFIER_ORDERED = "notifier_ordered";
+    public static final String RING_SIZE = "ring_size";
+    public static final String WAIT_STRATEGY = "wait_strategy";
+    public static final String JMX_METRICS = "jmx_metrics";
+
+    public static final String THREAD_POOL = "thread_pool";
+    public static final String WORK_STEALING = "work_stealing";
+    public static final String RING = "ring";
+
+    public static final String BUSY_SPIN = "busy_spin";
+    public static final String YIELD = "yield";
+    public static final String PARK = "park";
+
+    public static final String FIFO = "fifo";
+    public static final String PRIORITY = "priority";
+
+    public static final String POOL = "pool";
+    public static final String BATCHING = "batching";
+
+    public static final String FAIL_FAST = "fail_fast";
+    public static final String CALLER_RUNS = "caller_runs";
+    public static final String BLOCK = "block";
+    public static final String DROP_OLDEST = "drop_oldest";
 
     private static final Log log = new Log(SimpleExecutor.class);
 
@@ -86,30 +135,122 @@ public class SimpleExecutorProvider extends ConfigurableProvider<SimpleExecutor>
         final int queueSize       = configurations.validate(QUEUE_SIZE,        Integer.MAX_VALUE,      (int value) -> value >= 1);
         final int threadPriority  = configurations.validate(THREAD_PRIORITY,   NORM_PRIORITY,          (int value) -> (value >= MIN_PRIORITY) && (value <= MAX_PRIORITY));
         final Duration keepAlive  = configurations.validate(KEEP_ALIVE_TIME,   Duration.ofSeconds(60), (Duration value) -> value.getNano() >= 0);
+        final boolean virtual     = configurations.get(VIRTUAL_THREADS, false);
+        final String executorType = configurations.get(EXECUTOR_TYPE, THREAD_POOL);
+        final int parallelism     = configurations.validate(PARALLELISM,       Runtime.getRuntime().availableProcessors(), (int value) -> value >= 1);
+        final boolean adaptive    = configurations.get(ADAPTIVE_SIZING, false);
+        final Duration interval   = configurations.validate(ADAPTIVE_INTERVAL, Duration.ofSeconds(1),   (Duration value) -> ! (value.isNegative() || value.isZero()));
+        final Duration waitTime   = configurations.validate(ADAPTIVE_WAIT_TIME, Duration.ofMillis(10),  (Duration value) -> ! value.isNegative());
+        final String queueType    = configurations.get(QUEUE_TYPE, FIFO);
+        final Duration aging      = configurations.validate(PRIORITY_AGING,    Duration.ofMillis(100), (Duration value) -> ! value.isNegative());
+        final String rejection    = configurations.get(REJECTION_POLICY, FAIL_FAST);
+        final Duration blockTime  = configurations.validate(REJECTION_TIMEOUT, Duration.ofSeconds(1),   (Duration value) -> ! value.isNegative());
+        final String notifierType = configurations.get(NOTIFIER_TYPE, POOL);
+        final boolean ordered     = configurations.get(NOTIFIER_ORDERED, false);
+        final int ringSize        = configurations.validate(RING_SIZE,         1024,                   (int value) -> (value >= 1) && (value <= (1 << 30)));
+        final String waitStrategy = configurations.get(WAIT_STRATEGY, PARK);
+        final boolean jmx         = configurations.get(JMX_METRICS, false);
+
+        if (! (THREAD_POOL.equals(executorType) || WORK_STEALING.equals(executorType) || RING.equals(executorType)))
+            throw new IllegalArgumentException("Invalid executor type \"" + executorType + "\"");
+        if (! (FIFO.equals(queueType) || PRIORITY.equals(queueType)))
+            throw new IllegalArgumentException("Invalid queue type \"" + queueType + "\"");
+        if (! (BUSY_SPIN.equals(waitStrategy) || YIELD.equals(waitStrategy) || PARK.equals(waitStrategy)))
+            throw new IllegalArgumentException("Invalid wait strategy \"" + waitStrategy + "\"");
+        if (! (POOL.equals(notifierType) || BATCHING.equals(notifierType)))
+            throw new IllegalArgumentException("Invalid notifier type \"" + notifierType + "\"");
+        if (! (FAIL_FAST.equals(rejection) || CALLER_RUNS.equals(rejection) || BLOCK.equals(rejection) || DROP_OLDEST.equals(rejection)))
+            throw new IllegalArgumentException("Invalid rejection policy \"" + rejection + "\"");
+        if (RING.equals(executorType) && DROP_OLDEST.equals(rejection))
+            throw new IllegalArgumentException("Rejection policy \"" + rejection + "\" not supported by executor type \"" + executorType + "\"");
+        if (jmx && ManagementFactory.getPlatformMBeanServer().isRegistered(objectName(executorName)))
+            throw new IllegalArgumentException("Executor \"" + executorName + "\" already registered in JMX");
 
         log.debug("Executor[%s]  core pool size: %d threads",        executorName, corePoolSize);
         log.debug("Executor[%s]   max pool size: %d threads",        executorName, maximumPoolSize);
-        log.debug("Executor[%s]       notifiers: %d threads",        executorName, notifierThreads);
+        log.debug("Executor[%s]       notifiers: %d threads (%s, ordered %b)", executorName, notifierThreads, notifierType, ordered);
         log.debug("Executor[%s]      queue size: %d tasks",          executorName, queueSize);
         log.debug("Executor[%s] thread priority: %d (%d > %d > %d)", executorName, threadPriority, MIN_PRIORITY, NORM_PRIORITY, MAX_PRIORITY);
         log.debug("Executor[%s]      keep alive: %d ms",             executorName, keepAlive.toMillis());
+        log.debug("Executor[%s] virtual threads: %b",                executorName, virtual);
+        log.debug("Executor[%s]   executor type: %s",                executorName, executorType);
+        log.debug("Executor[%s]     parallelism: %d threads",        executorName, parallelism);
+        log.debug("Executor[%s] adaptive sizing: %b (every %d ms, wait %d ms)", executorName, adaptive, interval.toMillis(), waitTime.toMillis());
+        log.debug("Executor[%s]      queue type: %s (aging %d ms)",  executorName, queueType, aging.toMillis());
+        log.debug("Executor[%s]       ring size: %d slots (%s wait)", executorName, ringSize, waitStrategy);
+        log.debug("Executor[%s]       rejection: %s (timeout %d ms)", executorName, rejection, blockTime.toMillis());
+        log.debug("Executor[%s]     JMX metrics: %b",                executorName, jmx);
 
         /* How to notify completion */
         final Executor notifier;
         if (notifierThreads == 0) {
             notifier = ((runnable) -> runnable.run());
+        } else if (BATCHING.equals(notifierType)) {
+            notifier = new BatchingNotifier(executorName + "[Notifier]", notifierThreads, threadPriority, keepAlive, ordered);
         } else {
             final ThreadGroup group = new ThreadGroup(executorName + "[Notifier]");
             final ThreadFactory factory = new SimpleThreadFactory(group, threadPriority);
             notifier = Executors.newFixedThreadPool(notifierThreads, factory);
         }
 
+        /* Virtual threads, one per task, optionally capped by the max pool size */
+        if (virtual) {
+            final ExecutorService executor = virtualThreadExecutor(executorName);
+            if (executor != null) {
+                for (String ignored: new String[] { QUEUE_SIZE, KEEP_ALIVE_TIME, THREAD_PRIORITY }) {
+                    if (configurations.get(ignored) != null) log.warn("Executor[%s]: \"%s\" ignored with virtual threads", executorName, ignored);
+                }
+                if (maximumPoolSize == Integer.MAX_VALUE) return register(new SimpleExecutor(executorName, executor, notifier), jmx);
+                return register(new SimpleExecutor(executorName, new LimitedExecutorService(executor, maximumPoolSize), notifier, maximumPoolSize), jmx);
+            }
+
+            /* Not available: platform threads, never more than the max pool size */
+            log.warn("Executor[%s]: virtual threads not available, using platform threads", executorName);
+            final boolean bounded = maximumPoolSize != Integer.MAX_VALUE;
+            final SimpleRejectedExecutionHandler handler = new SimpleRejectedExecutionHandler(executorName, rejection, blockTime);
+            final ThreadPoolExecutor platform = new ThreadPoolExecutor(bounded ? maximumPoolSize : 0,
+                                                                       maximumPoolSize,
+                                                                       keepAlive.toNanos(),
+                                                                       NANOSECONDS,
+                                                                       bounded ? new LinkedBlockingQueue<>(queueSize) : new SynchronousQueue<>(),
+                                                                       new SimpleThreadFactory(new ThreadGroup(executorName), threadPriority),
+                                                                       handler);
+            if (bounded && (keepAlive.toNanos() > 0)) platform.allowCoreThreadTimeOut(true);
+            final SimpleExecutor simpleExecutor = bounded ? new SimpleExecutor(executorName, platform, notifier, maximumPoolSize)
+                                                          : new SimpleExecutor(executorName, platform, notifier);
+            handler.metrics = simpleExecutor.getMetrics();
+            return register(simpleExecutor, jmx);
+        }
+
+        /* Work stealing, for CPU-bound tasks spawning subtasks */
+        if (WORK_STEALING.equals(executorType)) {
+            final ForkJoinPool executor = new WorkStealingPool(executorName, parallelism, threadPriority);
+            return register(new SimpleExecutor(executorName, executor, notifier, parallelism), jmx);
+        }
+
+        /* Ring buffer, for low latency hand off to a fixed number of threads */
+        if (RING.equals(executorType)) {
+            final ThreadFactory factory = new SimpleThreadFactory(new ThreadGroup(executorName), threadPriority);
+            final RingBufferExecutor.WaitStrategy strategy = BUSY_SPIN.equals(waitStrategy) ? RingBufferExecutor.WaitStrategy.BUSY_SPIN :
+                                                             YIELD.equals(waitStrategy) ? RingBufferExecutor.WaitStrategy.YIELD :
+                                                             RingBufferExecutor.WaitStrategy.PARK;
+            final RingBufferExecutor.Saturation saturation = CALLER_RUNS.equals(rejection) ? RingBufferExecutor.Saturation.CALLER_RUNS :
+                                                             BLOCK.equals(rejection) ? RingBufferExecutor.Saturation.BLOCK :
+                                                             RingBufferExecutor.Saturation.FAIL_FAST;
+            final RingBufferExecutor executor = new RingBufferExecutor(ringSize, parallelism, strategy, saturation, blockTime, factory);
+            final SimpleExecutor simpleExecutor = new SimpleExecutor(executorName, executor, notifier, parallelism);
+            executor.metrics = simpleExecutor.getMetrics();
+            return register(simpleExecutor, jmx);
+        }
+
         /* Our main execution executor */
         final ThreadGroup group = new ThreadGroup(executorName);
-        final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(queueSize);
+        final BlockingQueue<Runnable> queue = PRIORITY.equals(queueType) ?
+                                              new PriorityTaskQueue(queueSize, aging) :
+                                              new LinkedBlockingQueue<>(queueSize);
         final ThreadFactory factory = new SimpleThreadFactory(group, threadPriority);
-        final RejectedExecutionHandler handler = new SimpleRejectedExecutionHandler(executorName);
-        final ThreadPoolExecutor executor = new ThreadPoolExecutor(corePoolSize,
+        final SimpleRejectedExecutionHandler handler = new SimpleRejectedExecutionHandler(executorName, rejection, blockTime);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(adaptive ? Math.max(1, corePoolSize) : corePoolSize,
                                                                    maximumPoolSize,
                                                                    keepAlive.toNanos(),
                                                                    NANOSECONDS,
@@ -117,8 +258,171 @@ public class SimpleExecutorProvider extends ConfigurableProvider<SimpleExecutor>
                                                                    factory,
                                                                    handler);
 
-        /* Done, create the executor */
-        return new SimpleExecutor(executorName, executor, notifier);
+        /* Done, create the executor and optionally adapt its size */
+        final SimpleExecutor simpleExecutor = new SimpleExecutor(executorName, executor, notifier, Math.max(1, corePoolSize));
+        handler.metrics = simpleExecutor.getMetrics();
+        if (adaptive) AdaptivePoolController.start(executor, simpleExecutor.getMetrics(), Math.max(1, corePoolSize), maximumPoolSize, interval, waitTime);
+        return register(simpleExecutor, jmx);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Remove the metrics of the specified {@link SimpleExecutor} from JMX,
+     * where they were registered if the {@link #JMX_METRICS} key was set.
+     * <p>
+     * Registered metrics (and the executor they measure) are referenced by
+     * the platform MBean server until this method is called.
+     */
+    public static void unregister(SimpleExecutor executor) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(executor.getName()));
+        } catch (InstanceNotFoundException exception) {
+            /* Never registered, or already unregistered */
+        } catch (JMException exception) {
+            log.warn(exception, "Executor[%s]: unable to unregister metrics from JMX", executor.getName());
+        }
+    }
+
+    /* Optionally expose the executor's metrics through JMX, keyed by its name */
+    private static SimpleExecutor register(SimpleExecutor executor, boolean jmx) {
+        if (! jmx) return executor;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(executor.getMetrics(), objectName(executor.getName()));
+        } catch (InstanceAlreadyExistsException exception) {
+            log.warn("Executor[%s]: metrics already registered in JMX", executor.getName());
+        } catch (JMException exception) {
+            log.warn(exception, "Executor[%s]: unable to register metrics in JMX", executor.getName());
+        }
+        return executor;
+    }
+
+    private static ObjectName objectName(String executorName) {
+        try {
+            return new ObjectName(SimpleExecutor.class.getPackage().getName()
+                                  + ":type=" + SimpleExecutor.class.getSimpleName()
+                                  + ",name=" + ObjectName.quote(executorName));
+        } catch (MalformedObjectNameException exception) {
+            throw new IllegalArgumentException("Invalid executor name \"" + executorName + "\"", exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Virtual threads are looked up reflectively, as we target older JVMs */
+    private static ExecutorService virtualThreadExecutor(String executorName) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, executorName + "-", 1L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException exception) {
+            return null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static class LimitedExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService executor;
+        private final Semaphore semaphore;
+
+        private LimitedExecutorService(ExecutorService executor, int concurrency) {
+            this.semaphore = new Semaphore(concurrency, true);
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            executor.execute(() -> {
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException exception) {
+                    /* Nobody would see an exception thrown here, fail the task's future */
+                    final RejectedExecutionException rejected = new RejectedExecutionException("Interrupted waiting to execute " + runnable, exception);
+                    if (runnable instanceof AbstractNotifyingFuture) ((AbstractNotifyingFuture<?>) runnable).setException(rejected);
+                    else log.warn(rejected, "Task %s not executed", runnable);
+                    return;
+                }
+
+                try {
+                    runnable.run();
+                } finally {
+                    semaphore.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executor.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executor.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executor.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException {
+            return executor.awaitTermination(timeout, unit);
+        }
+
+    }
+
+    /* ====================================================================== */
+
+    private static class WorkStealingPool extends ForkJoinPool {
+
+        private WorkStealingPool(String executorName, int parallelism, int priority) {
+            super(parallelism, new WorkStealingThreadFactory(executorName, priority), null, true);
+        }
+
+        /* Tasks submitted from our own workers go to their local deque */
+        @Override
+        public void execute(Runnable runnable) {
+            final Thread thread = Thread.currentThread();
+            if ((thread instanceof ForkJoinWorkerThread) && (((ForkJoinWorkerThread) thread).getPool() == this)) {
+                ForkJoinTask.adapt(runnable).fork();
+            } else {
+                super.execute(runnable);
+            }
+        }
+
+    }
+
+    private static class WorkStealingThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(0);
+        private final String executorName;
+        private final int priority;
+
+        private WorkStealingThreadFactory(String executorName, int priority) {
+            this.executorName = executorName;
+            this.priority = priority;
+        }
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) { /* Protected constructor */ };
+            thread.setName(String.format("%s-%d", executorName, threadNumber.incrementAndGet()));
+            thread.setPriority(priority);
+            return thread;
+        }
+
     }
 
     /* ====================================================================== */
@@ -147,21 +451,88 @@ public class SimpleExecutorProvider extends ConfigurableProvider<SimpleExecutor>
 
     /* ====================================================================== */
 
+    /*
+     * What to do when the queue is full and no more threads can be started:
+     * fail (the default), run the task in the submitting thread, block the
+     * submitting thread until space is available (or the timeout expires) or
+     * discard the oldest (or lowest priority) queued task, cancelling it, to
+     * make space.
+     */
     private static class SimpleRejectedExecutionHandler implements RejectedExecutionHandler {
 
         private final String executorName;
+        private final String policy;
+        private final long timeout;
+        private volatile ExecutorMetrics metrics;
 
-        private SimpleRejectedExecutionHandler(String executorName) {
+        private SimpleRejectedExecutionHandler(String executorName, String policy, Duration timeout) {
             this.executorName = executorName;
+            this.policy = policy;
+            this.timeout = timeout.toNanos();
         }
 
         @Override
         public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (! executor.isShutdown()) switch (policy) {
+
+                case CALLER_RUNS:
+                    metrics.callerRuns();
+                    runnable.run();
+                    return;
+
+                case BLOCK:
+                    metrics.blocked();
+                    try {
+                        if (executor.getQueue().offer(runnable, timeout, NANOSECONDS)) {
+                            if (executor.isShutdown() && executor.remove(runnable)) break;
+                            return;
+                        }
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(String.format("Executor[%s]: interrupted waiting to execute %s", executorName, runnable), exception);
+                    }
+                    break;
+
+                case DROP_OLDEST:
+                    final SimpleFuture<?> dropped = droppable(executor.getQueue());
+                    if (dropped == null) break; // nothing we can drop
+                    metrics.dropped();
+                    dropped.cancel(false);
+                    log.debug("Executor[%s]: dropped %s", executorName, dropped);
+                    executor.execute(runnable);
+                    return;
+
+                default:
+                    break;
+            }
+
             final String message = String.format("Executor[%s]: unable to execute %s", executorName, runnable);
             log.warn(message);
             throw new RejectedExecutionException(message);
         }
 
+        /*
+         * Remove the queued task to drop: the oldest one, or with a priority
+         * queue the one which would run last. Only tasks whose futures are
+         * ours to cancel are dropped, never internal runners (batches, serial
+         * queues) whose cancellation would affect other tasks.
+         */
+        private static SimpleFuture<?> droppable(BlockingQueue<Runnable> queue) {
+            while (true) {
+                Runnable candidate = null;
+                if (queue instanceof PriorityTaskQueue) {
+                    candidate = ((PriorityTaskQueue) queue).last((task) -> task instanceof SimpleFuture);
+                } else for (Runnable task: queue) {
+                    if (! (task instanceof SimpleFuture)) continue;
+                    candidate = task;
+                    break;
+                }
+
+                if (candidate == null) return null;
+                if (queue.remove(candidate)) return (SimpleFuture<?>) candidate;
+            }
+        }
+
     }
 
 }
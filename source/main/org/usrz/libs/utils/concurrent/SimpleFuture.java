@@ -0,0 +1,181 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.usrz.libs.utils.concurrent.PriorityTaskQueue.Prioritized;
+
+/**
+ * The {@link RunnableFuture} executed by {@link SimpleExecutor}, being at
+ * the same time the task and the {@link NotifyingFuture} returned to callers.
+ * <p>
+ * Like in {@link java.util.concurrent.FutureTask}, interrupting the runner
+ * is a handshake: the interrupting thread moves the task from <em>running</em>
+ * to <em>interrupting</em>, and the runner waits for the interrupt to be
+ * delivered and then clears it, so that it never leaks to the next task
+ * executed by the same thread.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ * @param <T> The type of the result of this {@link SimpleFuture}.
+ */
+class SimpleFuture<T> extends AbstractNotifyingFuture<T> implements RunnableFuture<T>, Prioritized {
+
+    private static final int READY = 0;
+    private static final int STARTING = 1;
+    private static final int RUNNING = 2;
+    private static final int INTERRUPTING = 3;
+    private static final int INTERRUPTED = 4;
+    private static final int FINISHED = 5;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<SimpleFuture> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(SimpleFuture.class, "state");
+
+    private final ExecutorMetrics metrics;
+    private final Callable<T> callable;
+    private final long submitted;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private final boolean interrupt;
+    private final int priority;
+    private volatile Thread runner;
+    private volatile int state;
+    private long sequence;
+
+    SimpleFuture(Callable<T> callable, int priority, Executor notifier, ExecutorMetrics metrics) {
+        super(notifier);
+        this.callable = callable;
+        this.priority = priority;
+        this.metrics = metrics;
+        submitted = System.nanoTime();
+        hasDeadline = false;
+        interrupt = false;
+        deadline = 0;
+    }
+
+    SimpleFuture(Callable<T> callable, int priority, Executor notifier, ExecutorMetrics metrics, Duration timeout, boolean interrupt) {
+        super(notifier);
+        this.callable = callable;
+        this.priority = priority;
+        this.metrics = metrics;
+        this.interrupt = interrupt;
+        submitted = System.nanoTime();
+        deadline = submitted + timeout.toNanos();
+        hasDeadline = true;
+    }
+
+    /* ====================================================================== */
+
+    /* Fail with a timeout, interrupting our runner if we were asked to */
+    boolean expire() {
+        if (! setException(new TimeoutException("Deadline expired for " + callable))) return false;
+        metrics.expired();
+        if (interrupt) interruptTask();
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public int priority() {
+        return priority;
+    }
+
+    @Override
+    public long submitted() {
+        return submitted;
+    }
+
+    @Override
+    public long sequence() {
+        return sequence;
+    }
+
+    @Override
+    public void sequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+        if (isDone()) return;
+
+        /* Shed dead work: do not even start tasks past their deadline */
+        if (hasDeadline && (System.nanoTime() - deadline >= 0)) {
+            expire();
+            return;
+        }
+
+        /* Only run once, interrupts can only be delivered once running */
+        if (! STATE.compareAndSet(this, READY, STARTING)) return;
+        runner = Thread.currentThread();
+        state = RUNNING;
+
+        final long started = System.nanoTime();
+        metrics.started(started - submitted);
+
+        T result = null;
+        Throwable failure = null;
+        try {
+            /* Cancelled before we were running, nobody interrupted us */
+            if (! isDone()) result = callable.call();
+        } catch (Throwable throwable) {
+            failure = throwable;
+        } finally {
+            finish();
+        }
+
+        /* Expired (or cancelled) while running: already completed and counted */
+        if (isDone()) return;
+
+        /* Record metrics before completing, so they're visible to consumers */
+        metrics.completed(System.nanoTime() - started, failure == null);
+        if (failure == null) set(result);
+        else setException(failure);
+    }
+
+    /* Wait for any interrupt aimed at us to land, and clear it */
+    private void finish() {
+        if (! STATE.compareAndSet(this, RUNNING, FINISHED)) {
+            while (state == INTERRUPTING) Thread.yield();
+            Thread.interrupted();
+            state = FINISHED;
+        }
+        runner = null;
+    }
+
+    @Override
+    protected void interruptTask() {
+        if (! STATE.compareAndSet(this, RUNNING, INTERRUPTING)) return;
+        try {
+            final Thread runner = this.runner;
+            if (runner != null) runner.interrupt();
+        } finally {
+            state = INTERRUPTED;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "[" + callable + "]";
+    }
+}
@@ -0,0 +1,111 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class ByteBufferPoolTest extends AbstractTest {
+
+    @Test
+    public void testSizeClasses() {
+        final ByteBufferPool pool = new ByteBufferPool(16, 1024, 4096, 8, 2);
+
+        final ByteBuffer small = pool.allocate(1);
+        assertTrue(small.isDirect(), "Buffer not direct");
+        assertEquals(small.capacity(), 16, "Wrong capacity");
+        assertEquals(small.limit(), 1, "Wrong limit");
+
+        final ByteBuffer medium = pool.allocate(100);
+        assertEquals(medium.capacity(), 128, "Wrong capacity");
+        assertEquals(medium.limit(), 100, "Wrong limit");
+
+        final ByteBuffer exact = pool.allocate(1024);
+        assertEquals(exact.capacity(), 1024, "Wrong capacity");
+
+        final ByteBuffer large = pool.allocate(1025);
+        assertTrue(large.isDirect(), "Buffer not direct");
+        assertEquals(large.capacity(), 1025, "Wrong capacity");
+    }
+
+    @Test
+    public void testReuse() {
+        final ByteBufferPool pool = new ByteBufferPool(16, 1024, 4096, 8, 2);
+
+        final ByteBuffer[] buffers = new ByteBuffer[6];
+        for (int x = 0; x < buffers.length; x ++) {
+            buffers[x] = pool.allocate(64);
+            buffers[x].put((byte) x);
+        }
+
+        /* Slices from the same slab must never overlap */
+        for (int x = 0; x < buffers.length; x ++) {
+            assertEquals(buffers[x].get(0), (byte) x, "Overlapping buffers");
+        }
+
+        for (ByteBuffer buffer: buffers) pool.release(buffer);
+        for (ByteBuffer buffer: buffers) {
+            assertEquals(buffer.position(), 0, "Buffer position not cleared");
+            assertEquals(buffer.limit(), buffer.capacity(), "Buffer limit not cleared");
+        }
+
+        /* Magazine first (last released), then shared pool (first released) */
+        assertSame(pool.allocate(40), buffers[1], "Wrong buffer from magazine");
+        assertSame(pool.allocate(40), buffers[0], "Wrong buffer from magazine");
+        assertSame(pool.allocate(40), buffers[2], "Wrong buffer from shared pool");
+    }
+
+    @Test
+    public void testReleaseForeign() {
+        final ByteBufferPool pool = new ByteBufferPool(16, 1024, 4096, 8, 2);
+
+        for (ByteBuffer buffer: new ByteBuffer[] { ByteBuffer.allocateDirect(64), ByteBuffer.allocate(64) }) try {
+            pool.release(buffer);
+            fail("Illegal argument exception not thrown");
+        } catch (IllegalArgumentException exception) {
+            /* Expected */
+        }
+
+        /* Nothing foreign was pooled */
+        final ByteBuffer buffer = pool.allocate(64);
+        assertTrue(buffer.isDirect(), "Buffer not direct");
+        assertEquals(buffer.capacity(), 64, "Wrong capacity");
+
+        /* Unpooled buffers are simply forgotten */
+        pool.release(pool.allocate(2048));
+    }
+
+    @Test
+    public void testReleaseTwice() {
+        final ByteBufferPool pool = new ByteBufferPool(16, 1024, 4096, 8, 2);
+
+        final ByteBuffer buffer = pool.allocate(64);
+        pool.release(buffer);
+        try {
+            pool.release(buffer);
+            fail("Illegal argument exception not thrown");
+        } catch (IllegalArgumentException exception) {
+            /* Expected */
+        }
+
+        /* Handed out once, not twice */
+        assertSame(pool.allocate(64), buffer, "Wrong buffer reused");
+        assertNotSame(pool.allocate(64), buffer, "Buffer handed out twice");
+    }
+
+}
@@ -0,0 +1,128 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class KeyedObjectPoolTest extends AbstractTest {
+
+    @Test
+    public void testKeyedObjectPool() {
+        final AtomicInteger created = new AtomicInteger();
+        final KeyedObjectPool<String, String> pool = new KeyedObjectPool<>(2, 10, (key) -> key + created.incrementAndGet());
+
+        final String a1 = pool.borrowObject("a");
+        final String a2 = pool.borrowObject("a");
+        final String a3 = pool.borrowObject("a");
+        final String b1 = pool.borrowObject("b");
+        assertEquals(created.get(), 4, "Wrong number of created instances");
+
+        pool.returnObject("a", a1);
+        pool.returnObject("a", a2);
+        pool.returnObject("a", a3);
+        pool.returnObject("b", b1);
+        pool.returnObject("b", null);
+        assertEquals(pool.getIdleCount("a"), 2, "Wrong number of idle instances for \"a\"");
+        assertEquals(pool.getIdleCount("b"), 1, "Wrong number of idle instances for \"b\"");
+        assertEquals(pool.getIdleCount(), 3, "Wrong number of idle instances");
+
+        assertSame(pool.borrowObject("a"), a1, "Wrong instance borrowed");
+        assertSame(pool.borrowObject("b"), b1, "Wrong instance borrowed");
+        assertEquals(pool.getIdleCount(), 1, "Wrong number of idle instances");
+    }
+
+    @Test
+    public void testKeyedObjectPoolEviction() {
+        final KeyedObjectPool<String, Object> pool = new KeyedObjectPool<>(5, 3, (key) -> new Object());
+
+        final Object a = pool.borrowObject("a");
+        final Object b = pool.borrowObject("b");
+        final Object c = pool.borrowObject("c");
+        final Object d = pool.borrowObject("d");
+
+        pool.returnObject("a", a);
+        pool.returnObject("b", b);
+        pool.returnObject("c", c);
+
+        /* Touch "a", so that "b" becomes the least recently used key */
+        pool.returnObject("a", pool.borrowObject("a"));
+        pool.returnObject("d", d);
+
+        assertEquals(pool.getIdleCount(), 3, "Wrong number of idle instances");
+        assertEquals(pool.getIdleCount("a"), 1, "Wrong number of idle instances for \"a\"");
+        assertEquals(pool.getIdleCount("b"), 0, "Wrong number of idle instances for \"b\"");
+        assertEquals(pool.getIdleCount("c"), 1, "Wrong number of idle instances for \"c\"");
+        assertEquals(pool.getIdleCount("d"), 1, "Wrong number of idle instances for \"d\"");
+    }
+
+    @Test
+    public void testKeyedObjectPoolIdleCountUntouched() {
+        final KeyedObjectPool<String, Object> pool = new KeyedObjectPool<>(5, 3, (key) -> new Object());
+
+        pool.returnObject("a", new Object());
+        pool.returnObject("b", new Object());
+        pool.returnObject("c", new Object());
+
+        /* Counting doesn't make "a" recently used */
+        assertEquals(pool.getIdleCount("a"), 1, "Wrong number of idle instances for \"a\"");
+        pool.returnObject("d", new Object());
+
+        assertEquals(pool.getIdleCount("a"), 0, "Wrong number of idle instances for \"a\"");
+        assertEquals(pool.getIdleCount("b"), 1, "Wrong number of idle instances for \"b\"");
+    }
+
+    @Test
+    public void testKeyedObjectPoolConcurrent()
+    throws Exception {
+        final int maxSizePerKey = 4, maxIdle = 20, keys = 16;
+        final KeyedObjectPool<Integer, AtomicBoolean> pool = new KeyedObjectPool<>(maxSizePerKey, maxIdle, (key) -> new AtomicBoolean());
+        final AtomicInteger shared = new AtomicInteger();
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int x = 0; x < 8; x ++) {
+            final int thread = x;
+            threads.add(new Thread(() -> {
+                for (int y = 0; y < 20000; y ++) {
+                    final int key = (thread + y) % keys;
+                    final AtomicBoolean instance = pool.borrowObject(key);
+                    if (! instance.compareAndSet(false, true)) shared.incrementAndGet();
+                    instance.set(false);
+                    pool.returnObject(key, instance);
+                }
+            }));
+        }
+
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+
+        assertEquals(shared.get(), 0, "Instances borrowed twice");
+
+        int total = 0;
+        for (int key = 0; key < keys; key ++) {
+            assertTrue(pool.getIdleCount(key) <= maxSizePerKey, "Too many idle instances for key " + key);
+            total += pool.getIdleCount(key);
+        }
+        assertEquals(pool.getIdleCount(), total, "Wrong number of idle instances");
+        assertTrue(total <= maxIdle, "Too many idle instances");
+    }
+
+}
@@ -0,0 +1,103 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH contention benchmarks comparing {@link ObjectPool} against plain
+ * allocate-and-discard and {@link ThreadLocal} caching.
+ * <p>
+ * Run {@link #main(String[])} to execute the suite from 1 to 64 threads,
+ * with the GC profiler reporting allocation rates alongside throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectPoolBenchmark {
+
+    @Param({ "1", "16", "256" })
+    public int maxSize;
+
+    @Param({ "16", "1024", "65536" })
+    public int payloadSize;
+
+    private ObjectPool<byte[]> pool;
+    private ThreadLocal<byte[]> local;
+
+    @Setup
+    public void setup() {
+        final int size = payloadSize;
+        pool = new ObjectPool<>(maxSize, () -> new byte[size]);
+        local = ThreadLocal.withInitial(() -> new byte[size]);
+    }
+
+    @Benchmark
+    public void pooled(Blackhole blackhole) {
+        final byte[] payload = pool.borrowObject();
+        payload[0] ++;
+        blackhole.consume(payload);
+        pool.returnObject(payload);
+    }
+
+    @Benchmark
+    public void allocated(Blackhole blackhole) {
+        final byte[] payload = new byte[payloadSize];
+        payload[0] ++;
+        blackhole.consume(payload);
+    }
+
+    @Benchmark
+    public void threadLocal(Blackhole blackhole) {
+        final byte[] payload = local.get();
+        payload[0] ++;
+        blackhole.consume(payload);
+    }
+
+    /* ====================================================================== */
+
+    public static void main(String[] args)
+    throws Exception {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final Options options = new OptionsBuilder()
+                    .include(ObjectPoolBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
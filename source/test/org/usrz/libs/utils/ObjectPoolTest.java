@@ -0,0 +1,123 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.utils.concurrent.NotifyingFuture;
+
+public class ObjectPoolTest extends AbstractTest {
+
+    @Test
+    public void testObjectPool() {
+        final AtomicInteger created = new AtomicInteger();
+        final ObjectPool<Object> pool = new ObjectPool<>(2, () -> created.incrementAndGet());
+
+        final Object a = pool.borrowObject();
+        final Object b = pool.borrowObject();
+        final Object c = pool.borrowObject();
+        assertEquals(created.get(), 3, "Wrong number of created instances");
+
+        pool.returnObject(a);
+        pool.returnObject(b);
+        pool.returnObject(c);
+        pool.returnObject(null);
+        assertEquals(pool.getIdleCount(), 2, "Wrong number of idle instances");
+
+        assertSame(pool.borrowObject(), a, "Wrong instance borrowed");
+        assertSame(pool.borrowObject(), b, "Wrong instance borrowed");
+        assertEquals(created.get(), 3, "Wrong number of created instances");
+    }
+
+    @Test
+    public void testPrewarm() {
+        final AtomicInteger created = new AtomicInteger();
+        final ObjectPool<Object> pool = new ObjectPool<>(5, () -> created.incrementAndGet());
+
+        assertEquals(pool.prewarm(3), 3, "Wrong number of prewarmed instances");
+        assertEquals(pool.prewarm(10), 2, "Wrong number of prewarmed instances");
+        assertEquals(pool.getIdleCount(), 5, "Wrong number of idle instances");
+
+        for (int x = 0; x < 5; x ++) pool.borrowObject();
+        assertEquals(created.get(), 5, "Wrong number of created instances");
+    }
+
+    @Test
+    public void testLowWatermark()
+    throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicInteger created = new AtomicInteger();
+            final ObjectPool<Object> pool = new ObjectPool<>(10, 4, executor, () -> created.incrementAndGet());
+            assertEquals(pool.prewarm(4), 4, "Wrong number of prewarmed instances");
+
+            /* Drain below the watermark, we should be refilled */
+            pool.borrowObject();
+            pool.borrowObject();
+            for (int x = 0; x < 50; x ++) {
+                if (pool.getIdleCount() >= 4) break;
+                Thread.sleep(10);
+            }
+
+            assertEquals(pool.getIdleCount(), 4, "Pool not refilled");
+            assertEquals(created.get(), 6, "Wrong number of created instances");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBorrowAsync()
+    throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final ObjectPool<Object> pool = new ObjectPool<>(2, () -> created.incrementAndGet());
+        pool.prewarm(1);
+
+        final NotifyingFuture<Object> immediate = pool.borrowAsync();
+        assertTrue(immediate.isDone(), "Future not completed");
+
+        final AtomicReference<Object> notified = new AtomicReference<>();
+        final NotifyingFuture<Object> first = pool.borrowAsync().withConsumer((future) -> {
+            try {
+                notified.set(future.get());
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        final NotifyingFuture<Object> cancelled = pool.borrowAsync();
+        final NotifyingFuture<Object> second = pool.borrowAsync();
+        assertFalse(first.isDone(), "Future completed");
+        assertFalse(second.isDone(), "Future completed");
+        assertTrue(cancelled.cancel(false), "Future not cancelled");
+
+        pool.returnObject(immediate.get());
+        assertTrue(first.isDone(), "Future not completed");
+        assertSame(first.get(), immediate.get(), "Wrong instance borrowed");
+        assertSame(notified.get(), immediate.get(), "Wrong instance notified");
+        assertFalse(second.isDone(), "Future completed");
+
+        pool.returnObject("foo");
+        assertEquals(second.get(), "foo", "Wrong instance borrowed");
+        assertEquals(pool.getIdleCount(), 0, "Wrong number of idle instances");
+        assertEquals(created.get(), 1, "Wrong number of created instances");
+    }
+
+}
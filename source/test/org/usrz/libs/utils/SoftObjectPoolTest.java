@@ -0,0 +1,91 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SoftObjectPoolTest extends AbstractTest {
+
+    @Test
+    public void testSoftObjectPool() {
+        final AtomicInteger created = new AtomicInteger();
+        final SoftObjectPool<Object> pool = new SoftObjectPool<>(2, 4, () -> new int[] { created.incrementAndGet() });
+        assertEquals(pool.getMaxSize(), 4, "Wrong maximum size");
+
+        final Object[] objects = new Object[5];
+        for (int x = 0; x < objects.length; x ++) objects[x] = pool.borrowObject();
+        for (int x = 0; x < objects.length; x ++) pool.returnObject(objects[x]);
+        assertEquals(pool.getIdleCount(), 4, "Wrong number of idle instances");
+
+        /* Strongly referenced core instances first */
+        assertSame(pool.borrowObject(), objects[0], "Wrong instance borrowed");
+        assertSame(pool.borrowObject(), objects[1], "Wrong instance borrowed");
+
+        /* Then softly referenced ones (still strongly held by our array) */
+        assertSame(pool.borrowObject(), objects[3], "Wrong instance borrowed");
+        assertSame(pool.borrowObject(), objects[2], "Wrong instance borrowed");
+        assertEquals(pool.getIdleCount(), 0, "Wrong number of idle instances");
+
+        pool.borrowObject();
+        assertEquals(created.get(), 6, "Wrong number of created instances");
+    }
+
+    @Test
+    public void testValidatedOnce() {
+        final AtomicInteger validated = new AtomicInteger();
+        final SoftObjectPool<Object> pool = new SoftObjectPool<>(1, 2, () -> new Object(), (instance) -> validated.incrementAndGet() > 0);
+
+        pool.returnObject(new Object());
+        pool.returnObject(new Object());
+        assertEquals(validated.get(), 2, "Wrong number of validations");
+    }
+
+    @Test
+    public void testCleared()
+    throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final SoftObjectPool<Object> pool = new SoftObjectPool<>(1, 4, () -> new int[] { created.incrementAndGet() });
+        for (int x = 0; x < 4; x ++) pool.returnObject(new Object());
+        assertEquals(pool.getIdleCount(), 4, "Wrong number of idle instances");
+
+        /* Simulate the garbage collector clearing all soft references */
+        final Field field = SoftObjectPool.class.getDeclaredField("references");
+        field.setAccessible(true);
+        for (Object reference: (Collection<?>) field.get(pool)) {
+            ((Reference<?>) reference).clear();
+            ((Reference<?>) reference).enqueue();
+        }
+
+        /* Uncounted straight away, skipped when borrowing */
+        assertEquals(pool.getIdleCount(), 1, "Wrong number of idle instances");
+        assertNotNull(pool.borrowObject(), "Strong instance not borrowed");
+        assertEquals(created.get(), 0, "Wrong number of created instances");
+        assertNotNull(pool.borrowObject(), "Instance not created");
+        assertEquals(created.get(), 1, "Wrong number of created instances");
+        assertEquals(((Collection<?>) field.get(pool)).size(), 0, "Cleared references not dropped");
+
+        /* Room for new soft instances again */
+        for (int x = 0; x < 4; x ++) pool.returnObject(new Object());
+        assertEquals(pool.getIdleCount(), 4, "Wrong number of idle instances");
+    }
+
+}
@@ -0,0 +1,139 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class BatchLoaderTest extends AbstractTest {
+
+    private final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+
+    private static Map<Integer, String> values(Set<Integer> keys) {
+        final Map<Integer, String> values = new HashMap<>();
+        for (Integer key: keys) if (key >= 0) values.put(key, "value" + key);
+        return values;
+    }
+
+    @Test
+    public void testLoad()
+    throws Exception {
+        final ConcurrentLinkedQueue<Set<Integer>> batches = new ConcurrentLinkedQueue<>();
+        final BatchLoader<Integer, String> loader = new BatchLoader<>(executor, 100, Duration.ofMillis(20), (keys) -> {
+            batches.add(keys);
+            return values(keys);
+        });
+
+        /* Duplicate keys share the same future */
+        final List<NotifyingFuture<String>> futures = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) futures.add(loader.load(x % 10));
+        assertSame(loader.load(3), futures.get(3), "Wrong future");
+
+        for (int x = 0; x < 100; x ++) assertEquals(futures.get(x).get(1, TimeUnit.SECONDS), "value" + (x % 10));
+        assertEquals(batches.size(), 1, "Wrong number of batches");
+        assertEquals(batches.peek().size(), 10, "Wrong batch size");
+
+        /* Missing keys are null, loaded keys are requested again */
+        assertNull(loader.load(-1).get(1, TimeUnit.SECONDS));
+        assertEquals(loader.load(3).get(1, TimeUnit.SECONDS), "value3");
+        assertEquals(batches.size(), 3, "Wrong number of batches");
+    }
+
+    @Test
+    public void testMaxBatchSize()
+    throws Exception {
+        final ConcurrentLinkedQueue<Set<Integer>> batches = new ConcurrentLinkedQueue<>();
+        final BatchLoader<Integer, String> loader = new BatchLoader<>(executor, 10, Duration.ofHours(1), (keys) -> {
+            batches.add(keys);
+            return values(keys);
+        });
+
+        final List<NotifyingFuture<String>> futures = new ArrayList<>();
+        for (int x = 0; x < 50; x ++) futures.add(loader.load(x));
+        for (int x = 0; x < 50; x ++) assertEquals(futures.get(x).get(1, TimeUnit.SECONDS), "value" + x);
+
+        assertEquals(batches.size(), 5, "Wrong number of batches");
+        for (Set<Integer> batch: batches) assertEquals(batch.size(), 10, "Wrong batch size");
+    }
+
+    @Test
+    public void testFailure()
+    throws Exception {
+        final BatchLoader<Integer, String> loader = new BatchLoader<>(executor, 10, Duration.ofMillis(10), (keys) -> {
+            throw new IllegalStateException("Failed " + keys);
+        });
+
+        final List<NotifyingFuture<String>> futures = Arrays.asList(loader.load(1), loader.load(2));
+        for (NotifyingFuture<String> future: futures) try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof IllegalStateException, "Wrong cause " + exception.getCause());
+        }
+    }
+
+    @Test
+    public void testRejected()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.QUEUE_SIZE, 1)
+                        .build());
+        final BatchLoader<Integer, String> loader = new BatchLoader<>(executor, 1, Duration.ofHours(1), BatchLoaderTest::values);
+
+        /* Block our only thread, and fill up the queue */
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.run(() -> {
+            try {
+                started.countDown();
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS), "Blocking task not started");
+        final NotifyingFuture<?> queued = executor.run(() -> {});
+
+        try {
+            loader.load(1).get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof RejectedExecutionException, "Wrong cause " + exception.getCause());
+        }
+
+        /* The key was forgotten, and can be loaded again once the queue drained */
+        latch.countDown();
+        queued.get(1, TimeUnit.SECONDS);
+        assertEquals(loader.load(1).get(1, TimeUnit.SECONDS), "value1");
+    }
+
+}
@@ -0,0 +1,146 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class HashedWheelTimerTest extends AbstractTest {
+
+    private HashedWheelTimer timer(int wheelSize) {
+        return HashedWheelTimerProvider.create(new ConfigurationsBuilder()
+                        .put(HashedWheelTimerProvider.TICK_DURATION, "0.01 seconds")
+                        .put(HashedWheelTimerProvider.WHEEL_SIZE, wheelSize)
+                        .put(HashedWheelTimerProvider.EXECUTOR_THREADS, 1)
+                        .build());
+    }
+
+    @Test
+    public void testSchedule()
+    throws Exception {
+        final HashedWheelTimer timer = timer(8);
+        try {
+            final long started = System.nanoTime();
+            final NotifyingFuture<String> future = timer.schedule(() -> "foo", Duration.ofMillis(100));
+            assertFalse(future.isDone(), "Future done");
+            assertEquals(future.get(1, TimeUnit.SECONDS), "foo");
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(100), "Expired too early");
+
+            /* Failures are reported by the future */
+            final NotifyingFuture<?> failing = timer.schedule(() -> { throw new IllegalStateException(); }, Duration.ZERO);
+            try {
+                failing.get(1, TimeUnit.SECONDS);
+                fail("Execution exception not thrown");
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof IllegalStateException, "Wrong cause " + exception.getCause());
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testRounds()
+    throws Exception {
+        /* 4 buckets of 10 ms: all these timeouts wrap around the wheel */
+        final HashedWheelTimer timer = timer(4);
+        try {
+            final long started = System.nanoTime();
+            final List<NotifyingFuture<Long>> futures = new ArrayList<>();
+            for (int x = 1; x <= 10; x ++) {
+                futures.add(timer.schedule(() -> System.nanoTime() - started, Duration.ofMillis(x * 25)));
+            }
+
+            long previous = 0;
+            for (int x = 0; x < futures.size(); x ++) {
+                final long elapsed = futures.get(x).get(1, TimeUnit.SECONDS);
+                assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos((x + 1) * 25), "Timeout " + x + " expired too early");
+                assertTrue(elapsed >= previous, "Timeout " + x + " expired out of order");
+                previous = elapsed;
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testCancel()
+    throws Exception {
+        final HashedWheelTimer timer = timer(8);
+        try {
+            final AtomicInteger executions = new AtomicInteger();
+            final NotifyingFuture<?> cancelled = timer.schedule(() -> executions.incrementAndGet(), Duration.ofMillis(50));
+            final NotifyingFuture<?> expired = timer.schedule(() -> executions.incrementAndGet(), Duration.ofMillis(100));
+
+            assertTrue(cancelled.cancel(false), "Not cancelled");
+            expired.get(1, TimeUnit.SECONDS);
+            assertEquals(executions.get(), 1, "Wrong number of executions");
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void testStop()
+    throws Exception {
+        final HashedWheelTimer timer = timer(8);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String prefix = timer.getName() + "[Executor]";
+        assertTrue(timer.schedule(() -> Thread.currentThread().getName(), Duration.ZERO).get(1, TimeUnit.SECONDS).startsWith(prefix));
+
+        final NotifyingFuture<?> future = timer.schedule(() -> {}, Duration.ofSeconds(10))
+                                               .withConsumer((f) -> latch.countDown());
+        timer.stop();
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS), "Not notified");
+        try {
+            future.get();
+            fail("Cancellation exception not thrown");
+        } catch (CancellationException exception) {
+            /* Expected */
+        }
+
+        try {
+            timer.schedule(() -> {}, Duration.ZERO);
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+
+        /* The executor created by the provider is shut down */
+        for (int x = 0; (x < 100) && threads(prefix); x ++) Thread.sleep(10);
+        assertFalse(threads(prefix), "Executor threads still alive");
+    }
+
+    private static boolean threads(String prefix) {
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,138 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * JMH contention benchmarks for {@link KeyedExecutor#call(Object, Callable)},
+ * compared with the previous implementation synchronizing on the executor.
+ * <p>
+ * Tasks run in the calling thread, so that only the cost of installing and
+ * removing per-key futures is measured. Run {@link #main(String[])} to
+ * execute the suite from 1 to 64 threads: with <em>distinct</em> keys the
+ * throughput of {@link KeyedExecutor} should scale with the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyedExecutorBenchmark {
+
+    @Param({ "distinct", "shared" })
+    public String keys;
+
+    private KeyedExecutor<Integer> keyedExecutor;
+    private LockingKeyedExecutor<Integer> lockingExecutor;
+
+    @Setup
+    public void setup() {
+        final SimpleExecutor executor = new SimpleExecutor("Benchmark", MoreExecutors.newDirectExecutorService(), (runnable) -> runnable.run());
+        keyedExecutor = new KeyedExecutor<>(executor);
+        lockingExecutor = new LockingKeyedExecutor<>(executor);
+    }
+
+    @State(Scope.Thread)
+    public static class Key {
+
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private final int thread = THREADS.incrementAndGet();
+        private int counter;
+
+        private Integer next(String keys) {
+            return "shared".equals(keys) ? 0 : (thread << 20) | (counter ++ & 0xFFFFF);
+        }
+    }
+
+    @Benchmark
+    public Object lockFree(Key key)
+    throws Exception {
+        return keyedExecutor.call(key.next(keys), () -> Boolean.TRUE).get();
+    }
+
+    @Benchmark
+    public Object locking(Key key)
+    throws Exception {
+        return lockingExecutor.call(key.next(keys), () -> Boolean.TRUE).get();
+    }
+
+    /* ====================================================================== */
+
+    /* The previous implementation verbatim, submitting under a global lock */
+    private static final class LockingKeyedExecutor<K> {
+
+        private final ConcurrentHashMap<K, NotifyingFuture<?>> futures = new ConcurrentHashMap<>();
+        private final SimpleExecutor executor;
+
+        private LockingKeyedExecutor(SimpleExecutor executor) {
+            this.executor = executor;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> NotifyingFuture<T> call(K key, Callable<T> callable) {
+
+            /* Check if we already have a future without synchronizing */
+            NotifyingFuture<T> future = (NotifyingFuture<T>) futures.get(key);
+            if (future != null) return future;
+
+            synchronized (this) {
+                /* Recheck synchronized */
+                future = (NotifyingFuture<T>) futures.get(key);
+                if (future != null) return future;
+
+                /* Create a new future and be notified when we're done */
+                future = executor.call(callable).withConsumer((f) -> futures.remove(key));
+                futures.put(key, future);
+                return future;
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    public static void main(String[] args)
+    throws Exception {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            final Options options = new OptionsBuilder()
+                    .include(KeyedExecutorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -15,6 +15,14 @@
  * ========================================================================== */
 package org.usrz.libs.utils.concurrent;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.testng.annotations.Test;
@@ -57,4 +65,364 @@ public class KeyedExecutorTest extends AbstractTest {
         assertEquals(notified.get(), 10000, "Wrong number of notifications");
     }
 
+    @Test
+    public void testDeduplicateStress()
+    throws Exception {
+        final KeyedExecutor<Integer> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                                                                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                                                                        .build()));
+
+        /* Threads racing on the same key, once per round */
+        final int callers = 16, rounds = 200;
+        final AtomicInteger executions = new AtomicInteger();
+        final CyclicBarrier barrier = new CyclicBarrier(callers);
+        final NotifyingFuture<?>[][] futures = new NotifyingFuture<?>[rounds][callers];
+        final CountDownLatch[] called = new CountDownLatch[rounds];
+        for (int x = 0; x < rounds; x ++) called[x] = new CountDownLatch(callers);
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int x = 0; x < callers; x ++) {
+            final int caller = x;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round ++) {
+                        final CountDownLatch latch = called[round];
+                        barrier.await();
+                        futures[round][caller] = executor.call(round, () -> {
+                            executions.incrementAndGet();
+                            /* Still running when everyone has called */
+                            return latch.await(10, TimeUnit.SECONDS);
+                        });
+                        latch.countDown();
+                    }
+                } catch (Exception exception) {
+                    throw new IllegalStateException(exception);
+                }
+            }));
+        }
+
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+
+        for (int round = 0; round < rounds; round ++) {
+            assertEquals(futures[round][0].get(), Boolean.TRUE, "Wrong result in round " + round);
+            for (int caller = 1; caller < callers; caller ++) {
+                assertSame(futures[round][caller], futures[round][0], "Different futures in round " + round);
+            }
+        }
+        assertEquals(executions.get(), rounds, "Wrong number of executions");
+    }
+
+    @Test
+    public void testRetention()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.RETENTION_TIME, "0.2 seconds")
+                                                                       .build());
+        final AtomicInteger performed = new AtomicInteger(0);
+
+        assertEquals(executor.call("FOO", () -> performed.incrementAndGet()).get().intValue(), 1);
+        assertEquals(executor.call("FOO", () -> performed.incrementAndGet()).get().intValue(), 1);
+        assertEquals(executor.call("BAR", () -> performed.incrementAndGet()).get().intValue(), 2);
+
+        /* Failures are never retained */
+        try {
+            executor.call("BAZ", () -> { throw new IllegalStateException(); }).get();
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            /* Expected */
+        }
+        Thread.sleep(10);
+        assertEquals(executor.call("BAZ", () -> performed.incrementAndGet()).get().intValue(), 3);
+
+        /* Expired, recomputed */
+        Thread.sleep(250);
+        assertEquals(executor.call("FOO", () -> performed.incrementAndGet()).get().intValue(), 4);
+    }
+
+    @Test
+    public void testRetentionExpiredOnLookup()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.RETENTION_TIME, "0.05 seconds")
+                                                                       .build());
+        executor.call("FOO", () -> "foo").get();
+        executor.call("BAR", () -> "bar").get();
+
+        /* Looking up any key evicts expired results, even with nothing completing */
+        Thread.sleep(100);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final NotifyingFuture<String> future = executor.call("FOO", () -> {
+            latch.await();
+            return "again";
+        });
+        assertEquals(executor.size(), 1, "Expired result not evicted");
+        assertEquals(executor.retainedSize(), 0, "Wrong number of retained results");
+
+        latch.countDown();
+        assertEquals(future.get(), "again");
+    }
+
+    @Test
+    public void testRetentionReplaced()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.RETENTION_TIME, "0.001 seconds")
+                                                                       .put(KeyedExecutor.STALE_TIME, "1 hour")
+                                                                       .build());
+        executor.call("FOO", () -> "foo").get();
+
+        /* Every call refreshes (and replaces) a stale result */
+        for (int x = 0; x < 200; x ++) {
+            Thread.sleep(2);
+            executor.call("FOO", () -> "foo").get();
+        }
+        assertTrue(executor.retainedSize() <= 20, "Replaced results linger: " + executor.retainedSize());
+    }
+
+    @Test
+    public void testStaleWhileRefresh()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.RETENTION_TIME, "0.1 seconds")
+                                                                       .put(KeyedExecutor.STALE_TIME, "10 seconds")
+                                                                       .build());
+        final AtomicInteger performed = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(1);
+        assertEquals(executor.call("FOO", () -> performed.incrementAndGet()).get().intValue(), 1);
+
+        /* Stale: we get the old value, while a single refresh runs */
+        Thread.sleep(150);
+        for (int x = 0; x < 10; x ++) {
+            assertEquals(executor.call("FOO", () -> {
+                latch.await();
+                return performed.incrementAndGet();
+            }).get().intValue(), 1);
+        }
+
+        latch.countDown();
+        for (int x = 0; (x < 100) && (executor.call("FOO", () -> -1).get() == 1); x ++) Thread.sleep(10);
+        assertEquals(executor.call("FOO", () -> -1).get().intValue(), 2);
+        assertEquals(performed.get(), 2, "Wrong number of performed tasks");
+    }
+
+    @Test
+    public void testMaxSize()
+    throws Exception {
+        final KeyedExecutor<Integer> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                                                                    new ConfigurationsBuilder()
+                                                                        .put(KeyedExecutor.RETENTION_TIME, "1 hour")
+                                                                        .put(KeyedExecutor.MAX_SIZE, 10)
+                                                                        .build());
+        final AtomicInteger performed = new AtomicInteger(0);
+        for (int x = 0; x < 20; x ++) {
+            executor.call(x, () -> performed.incrementAndGet()).get();
+            Thread.sleep(1);
+        }
+
+        /* The last ten are retained, the first ten were evicted */
+        for (int x = 19; x >= 10; x --) executor.call(x, () -> performed.incrementAndGet()).get();
+        assertEquals(performed.get(), 20, "Wrong number of performed tasks");
+        executor.call(0, () -> performed.incrementAndGet()).get();
+        assertEquals(performed.get(), 21, "Wrong number of performed tasks");
+    }
+
+    @Test
+    public void testSerial()
+    throws Exception {
+        final KeyedExecutor<Integer> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                                                                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                                                                        .build()),
+                                                                    new ConfigurationsBuilder()
+                                                                        .put(KeyedExecutor.EXECUTION_MODE, KeyedExecutor.SERIAL)
+                                                                        .build());
+
+        final int keys = 8, tasks = 500;
+        final List<List<Integer>> orders = new ArrayList<>();
+        final AtomicInteger[] running = new AtomicInteger[keys];
+        final AtomicInteger overlaps = new AtomicInteger();
+        for (int x = 0; x < keys; x ++) {
+            orders.add(Collections.synchronizedList(new ArrayList<>()));
+            running[x] = new AtomicInteger();
+        }
+
+        final List<NotifyingFuture<?>> futures = new ArrayList<>();
+        for (int y = 0; y < tasks; y ++) for (int x = 0; x < keys; x ++) {
+            final int key = x, task = y;
+            futures.add(executor.run(key, () -> {
+                if (running[key].incrementAndGet() != 1) overlaps.incrementAndGet();
+                orders.get(key).add(task);
+                running[key].decrementAndGet();
+            }));
+        }
+
+        for (NotifyingFuture<?> future: futures) future.get();
+        assertEquals(overlaps.get(), 0, "Tasks for the same key overlapped");
+        for (List<Integer> order: orders) {
+            assertEquals(order.size(), tasks, "Wrong number of tasks executed");
+            for (int y = 0; y < tasks; y ++) assertEquals(order.get(y).intValue(), y, "Wrong execution order");
+        }
+
+        /* Queues are discarded when empty, new ones are created on demand */
+        assertEquals(executor.call(0, () -> "again").get(), "again");
+    }
+
+    @Test
+    public void testSerialStress()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                                                                       .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                                                                       .build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.EXECUTION_MODE, KeyedExecutor.SERIAL)
+                                                                       .build());
+
+        /* Producers racing on a single key, while its queue keeps draining */
+        final int producers = 4, tasks = 20000;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger disorders = new AtomicInteger();
+        final int[] last = new int[producers];
+        final List<NotifyingFuture<?>> futures = Collections.synchronizedList(new ArrayList<>());
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int x = 0; x < producers; x ++) {
+            final int producer = x;
+            last[producer] = -1;
+            threads.add(new Thread(() -> {
+                for (int y = 0; y < tasks; y ++) {
+                    final int task = y;
+                    futures.add(executor.run("FOO", () -> {
+                        if (running.incrementAndGet() != 1) overlaps.incrementAndGet();
+                        if (last[producer] != task - 1) disorders.incrementAndGet();
+                        last[producer] = task;
+                        running.decrementAndGet();
+                    }));
+                    if (y % 100 == 0) Thread.yield();
+                }
+            }));
+        }
+
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+        for (NotifyingFuture<?> future: futures) future.get();
+
+        assertEquals(overlaps.get(), 0, "Tasks for the same key overlapped");
+        assertEquals(disorders.get(), 0, "Tasks for the same key out of order");
+        for (int x = 0; x < producers; x ++) assertEquals(last[x], tasks - 1, "Wrong last task");
+    }
+
+    @Test
+    public void testMaxInFlight()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                                                                       .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                                                                       .build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.EXECUTION_MODE, KeyedExecutor.SERIAL)
+                                                                       .put(KeyedExecutor.MAX_IN_FLIGHT, 2)
+                                                                       .build());
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        /* Two tasks in flight (one running, one queued), the third fails */
+        final NotifyingFuture<?> first = executor.run("FOO", () -> { try { latch.await(); } catch (InterruptedException e) {} });
+        final NotifyingFuture<?> second = executor.run("FOO", () -> {});
+        try {
+            executor.call("FOO", () -> "third").get();
+            fail("Rejected execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof RejectedExecutionException, "Wrong cause " + exception.getCause());
+        }
+
+        /* Other keys are not affected */
+        assertEquals(executor.call("BAR", () -> "bar").get(), "bar");
+
+        latch.countDown();
+        first.get();
+        second.get();
+        assertEquals(executor.call("FOO", () -> "again").get(), "again");
+    }
+
+    @Test
+    public void testRateLimitQueued()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                                                                       .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                                                                       .build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.EXECUTION_MODE, KeyedExecutor.SERIAL)
+                                                                       .put(KeyedExecutor.RATE_LIMIT, 20)
+                                                                       .put(KeyedExecutor.RATE_BURST, 2)
+                                                                       .put(KeyedExecutor.OVER_LIMIT, KeyedExecutor.QUEUE)
+                                                                       .build());
+
+        final long start = System.nanoTime();
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        final List<NotifyingFuture<?>> futures = new ArrayList<>();
+        for (int x = 0; x < 10; x ++) {
+            final int task = x;
+            futures.add(executor.run("FOO", () -> order.add(task)));
+        }
+
+        /* A noisy key doesn't delay others */
+        assertEquals(executor.call("BAR", () -> "bar").get(), "bar");
+        assertTrue(System.nanoTime() - start < 200000000L, "Other key delayed");
+
+        /* Two tasks in a burst, then one every 50 ms */
+        for (NotifyingFuture<?> future: futures) future.get();
+        final long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= 350000000L, "Rate not limited, elapsed " + elapsed / 1000000 + " ms");
+        for (int x = 0; x < 10; x ++) assertEquals(order.get(x).intValue(), x, "Wrong execution order");
+    }
+
+    @Test
+    public void testRateLimitFailFast()
+    throws Exception {
+        final KeyedExecutor<String> executor = new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                                                                   new ConfigurationsBuilder()
+                                                                       .put(KeyedExecutor.RATE_LIMIT, 5)
+                                                                       .put(KeyedExecutor.RATE_BURST, 1)
+                                                                       .build());
+
+        assertEquals(executor.call("FOO", () -> "foo").get(), "foo");
+        try {
+            executor.call("FOO", () -> "foo");
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+        assertEquals(executor.call("BAR", () -> "bar").get(), "bar");
+
+        /* Tokens are replenished */
+        Thread.sleep(250);
+        assertEquals(executor.call("FOO", () -> "again").get(), "again");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidOverLimit() {
+        new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                            new ConfigurationsBuilder().put(KeyedExecutor.OVER_LIMIT, "whatever").build());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidMaxInFlight() {
+        /* Deduplicated keys never have more than one task in flight */
+        new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                            new ConfigurationsBuilder().put(KeyedExecutor.MAX_IN_FLIGHT, 2).build());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidSerialRetention() {
+        /* Serial results are never retained */
+        new KeyedExecutor<>(SimpleExecutorProvider.create(new ConfigurationsBuilder().build()),
+                            new ConfigurationsBuilder()
+                                .put(KeyedExecutor.EXECUTION_MODE, KeyedExecutor.SERIAL)
+                                .put(KeyedExecutor.RETENTION_TIME, "1 second")
+                                .build());
+    }
+
 }
@@ -0,0 +1,215 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class MicroBatchingExecutorTest extends AbstractTest {
+
+    private final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                    .put(SimpleExecutorProvider.CORE_POOL_SIZE, 2)
+                    .build());
+
+    @Test
+    public void testBatchSize()
+    throws Exception {
+        final ConcurrentLinkedQueue<List<Integer>> batches = new ConcurrentLinkedQueue<>();
+        final MicroBatchingExecutor<String, Integer> batcher = new MicroBatchingExecutor<>(executor, 10, Duration.ofHours(1),
+                (key, items) -> batches.add(items));
+
+        final List<NotifyingFuture<?>> futures = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) futures.add(batcher.submit("foo", x));
+        for (NotifyingFuture<?> future: futures) future.get(1, TimeUnit.SECONDS);
+
+        assertEquals(batches.size(), 10, "Wrong number of batches");
+        final List<Integer> items = new ArrayList<>();
+        for (List<Integer> batch: batches) {
+            assertEquals(batch.size(), 10, "Wrong batch size");
+            items.addAll(batch);
+        }
+        Collections.sort(items);
+        for (int x = 0; x < 100; x ++) assertEquals(items.get(x).intValue(), x, "Wrong item");
+    }
+
+    @Test
+    public void testMaxDelay()
+    throws Exception {
+        final ConcurrentLinkedQueue<String> keys = new ConcurrentLinkedQueue<>();
+        final MicroBatchingExecutor<String, Integer> batcher = new MicroBatchingExecutor<>(executor, 100, Duration.ofMillis(50),
+                (key, items) -> keys.add(key + "=" + items.size()));
+
+        final long started = System.nanoTime();
+        final NotifyingFuture<?> foo = batcher.submit("foo", 1);
+        batcher.submit("foo", 2);
+        final NotifyingFuture<?> bar = batcher.submit("bar", 3);
+
+        foo.get(1, TimeUnit.SECONDS);
+        bar.get(1, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(50), "Flushed too early");
+        assertEquals(new ArrayList<>(keys).stream().sorted().toArray(), new Object[] { "bar=1", "foo=2" });
+    }
+
+    @Test
+    public void testFlushAndFailure()
+    throws Exception {
+        final MicroBatchingExecutor<String, Integer> batcher = new MicroBatchingExecutor<>(executor, 100, Duration.ofHours(1),
+                (key, items) -> { throw new IllegalStateException(key); });
+
+        final NotifyingFuture<?> future = batcher.submit("foo", 1);
+        assertFalse(future.isDone(), "Future done");
+        batcher.flush("foo");
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof IllegalStateException, "Wrong cause " + exception.getCause());
+        }
+    }
+
+    @Test
+    public void testRunnables()
+    throws Exception {
+        final MicroBatchingExecutor<String, Runnable> batcher = MicroBatchingExecutor.forRunnables(executor, 10, Duration.ofMillis(10));
+
+        final int threads = 4, tasks = 1000;
+        final AtomicInteger counter = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final ConcurrentLinkedQueue<NotifyingFuture<?>> futures = new ConcurrentLinkedQueue<>();
+        for (int x = 0; x < threads; x ++) new Thread(() -> {
+            for (int y = 0; y < tasks; y ++) futures.add(batcher.submit("counter", () -> counter.incrementAndGet()));
+            latch.countDown();
+        }).start();
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS), "Submitters not done");
+        for (NotifyingFuture<?> future: futures) future.get(1, TimeUnit.SECONDS);
+        assertEquals(counter.get(), threads * tasks, "Wrong counter");
+
+        /* Failures only affect their own future */
+        final NotifyingFuture<?> failing = batcher.submit("counter", () -> { throw new IllegalStateException(); });
+        final NotifyingFuture<?> working = batcher.submit("counter", () -> counter.incrementAndGet());
+        working.get(1, TimeUnit.SECONDS);
+        try {
+            failing.get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof IllegalStateException, "Wrong cause " + exception.getCause());
+        }
+    }
+
+    private static SimpleExecutor saturated(String policy, CountDownLatch latch) {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.QUEUE_SIZE, 1)
+                        .put(SimpleExecutorProvider.REJECTION_POLICY, policy)
+                        .build());
+
+        /* Block our only thread, and wait for it to be taken */
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.run(() -> {
+            try {
+                started.countDown();
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        try {
+            started.await();
+        } catch (InterruptedException exception) {
+            throw new IllegalStateException(exception);
+        }
+        return executor;
+    }
+
+    @Test
+    public void testCancelledBatch()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.DROP_OLDEST, latch);
+        final MicroBatchingExecutor<String, Integer> batcher = new MicroBatchingExecutor<>(executor, 100, Duration.ofHours(1),
+                (key, items) -> fail("Batch processed"));
+
+        /* Our batch is queued, and then dropped to make space */
+        final NotifyingFuture<?> future = batcher.submit("foo", 1);
+        batcher.flush("foo");
+        final NotifyingFuture<?> newest = executor.run(() -> {});
+
+        for (int x = 0; (x < 100) && (! future.isDone()); x ++) Thread.sleep(10);
+        assertTrue(future.isCancelled(), "Item future not cancelled");
+
+        latch.countDown();
+        newest.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testMaxDelayHandOff()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.CALLER_RUNS, latch);
+        executor.run(() -> {}); // fill the queue
+
+        final ConcurrentLinkedQueue<String> threads = new ConcurrentLinkedQueue<>();
+        final MicroBatchingExecutor<String, Integer> batcher = new MicroBatchingExecutor<>(executor, 100, Duration.ofMillis(10),
+                (key, items) -> threads.add(Thread.currentThread().getName()));
+
+        /* Saturated: the batch runs in the caller, never on the timer thread */
+        batcher.submit("foo", 1).get(1, TimeUnit.SECONDS);
+        assertEquals(threads.size(), 1, "Wrong number of batches");
+        assertTrue(threads.peek().startsWith(MicroBatchingExecutor.class.getSimpleName() + "[Flusher]"), "Batch processed by " + threads.peek());
+        latch.countDown();
+    }
+
+    @Test
+    public void testMaxDelayBlocked()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.BLOCK, latch);
+        executor.run(() -> {}); // fill the queue
+
+        final AtomicInteger processed = new AtomicInteger();
+        final MicroBatchingExecutor<String, Integer> batcher = new MicroBatchingExecutor<>(executor, 100, Duration.ofMillis(1),
+                (key, items) -> processed.addAndGet(items.size()));
+
+        /* Every flush blocks, but only on a bounded number of threads */
+        final List<NotifyingFuture<?>> futures = new ArrayList<>();
+        for (int x = 0; x < 64; x ++) futures.add(batcher.submit("key" + x, x));
+        Thread.sleep(100);
+
+        int flushers = 0;
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(MicroBatchingExecutor.class.getSimpleName() + "[Flusher]")) flushers ++;
+        }
+        assertTrue(flushers <= Math.max(2, Runtime.getRuntime().availableProcessors()), "Too many flushing threads " + flushers);
+
+        latch.countDown();
+        for (NotifyingFuture<?> future: futures) future.get(5, TimeUnit.SECONDS);
+        assertEquals(processed.get(), 64, "Wrong number of items processed");
+    }
+
+}
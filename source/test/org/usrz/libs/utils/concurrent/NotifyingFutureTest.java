@@ -0,0 +1,97 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class NotifyingFutureTest extends AbstractTest {
+
+    private final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                    .put(SimpleExecutorProvider.EXECUTOR_NAME, "Composition")
+                    .put(SimpleExecutorProvider.NOTIFIER_THREADS, 1)
+                    .build());
+
+    @Test
+    public void testThenApply()
+    throws Exception {
+        final NotifyingFuture<String> future = executor.call(() -> 21)
+                .thenApply((value) -> value * 2)
+                .thenApply((value) -> value + "@" + Thread.currentThread().getName());
+        assertTrue(future.get(1, TimeUnit.SECONDS).matches("^42@Composition\\[Notifier\\]-\\d+$"), "Wrong result " + future.get());
+    }
+
+    @Test
+    public void testThenCompose()
+    throws Exception {
+        final NotifyingFuture<Integer> future = executor.call(() -> 21)
+                .thenCompose((value) -> executor.call(() -> value * 2));
+        assertEquals(future.get(1, TimeUnit.SECONDS), Integer.valueOf(42), "Wrong result");
+    }
+
+    @Test
+    public void testExceptionally()
+    throws Exception {
+        final IllegalStateException failure = new IllegalStateException();
+        final NotifyingFuture<Integer> failed = executor.call(() -> { throw failure; });
+
+        try {
+            failed.thenApply((value) -> value).get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertSame(exception.getCause(), failure, "Wrong failure");
+        }
+
+        final NotifyingFuture<Integer> recovered = failed.exceptionally((throwable) -> throwable == failure ? 42 : 0);
+        assertEquals(recovered.get(1, TimeUnit.SECONDS), Integer.valueOf(42), "Wrong result");
+    }
+
+    @Test
+    public void testAllOfAnyOf()
+    throws Exception {
+        final SettableNotifyingFuture<Integer> first = new SettableNotifyingFuture<>();
+        final SettableNotifyingFuture<Integer> second = new SettableNotifyingFuture<>();
+        final NotifyingFuture<List<Integer>> all = NotifyingFuture.allOf(first, second);
+        final NotifyingFuture<Integer> any = NotifyingFuture.anyOf(first, second);
+
+        second.set(2);
+        assertEquals(any.get(), Integer.valueOf(2), "Wrong result");
+        assertFalse(all.isDone(), "Future done");
+
+        first.set(1);
+        assertEquals(all.get(), Arrays.asList(1, 2), "Wrong results");
+    }
+
+    @Test
+    public void testCompletableFutures()
+    throws Exception {
+        final CompletableFuture<Integer> completable = new CompletableFuture<>();
+        final NotifyingFuture<Integer> future = NotifyingFuture.from(completable);
+        assertFalse(future.isDone(), "Future done");
+        completable.complete(42);
+        assertEquals(future.get(), Integer.valueOf(42), "Wrong result");
+
+        assertEquals(executor.call(() -> 42).toCompletableFuture().get(1, TimeUnit.SECONDS), Integer.valueOf(42), "Wrong result");
+    }
+
+}
@@ -0,0 +1,236 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.utils.concurrent.RingBufferExecutor.Saturation;
+import org.usrz.libs.utils.concurrent.RingBufferExecutor.WaitStrategy;
+
+public class RingBufferExecutorTest extends AbstractTest {
+
+    private static RingBufferExecutor ring(int size, WaitStrategy strategy, Saturation saturation, Duration timeout) {
+        return new RingBufferExecutor(size, 1, strategy, saturation, timeout, Executors.defaultThreadFactory());
+    }
+
+    /* Blocks the only worker of a ring, returning once it started */
+    private static void block(RingBufferExecutor executor, CountDownLatch latch)
+    throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS), "Not started");
+    }
+
+    private void testExecute(WaitStrategy strategy, int tasks)
+    throws Exception {
+        final int producers = 4;
+        final RingBufferExecutor executor = new RingBufferExecutor(8, 2, strategy, Saturation.BLOCK, Duration.ofSeconds(10), Executors.defaultThreadFactory());
+        try {
+            final AtomicInteger executed = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(producers * tasks);
+            final List<Thread> threads = new ArrayList<>();
+            for (int x = 0; x < producers; x ++) threads.add(new Thread(() -> {
+                for (int y = 0; y < tasks; y ++) executor.execute(() -> {
+                    executed.incrementAndGet();
+                    latch.countDown();
+                });
+            }));
+
+            for (Thread thread: threads) thread.start();
+            for (Thread thread: threads) thread.join();
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS), "Not all tasks executed");
+            assertEquals(executed.get(), producers * tasks, "Wrong number of executions");
+            assertEquals(executor.size(), 0, "Ring not empty");
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS), "Not terminated");
+    }
+
+    @Test
+    public void testBusySpin()
+    throws Exception {
+        /* Spinning threads need dedicated processors, keep this short */
+        testExecute(WaitStrategy.BUSY_SPIN, 100);
+    }
+
+    @Test
+    public void testYield()
+    throws Exception {
+        testExecute(WaitStrategy.YIELD, 10000);
+    }
+
+    @Test
+    public void testPark()
+    throws Exception {
+        testExecute(WaitStrategy.PARK, 10000);
+    }
+
+    @Test
+    public void testFailFast()
+    throws Exception {
+        final RingBufferExecutor executor = ring(2, WaitStrategy.PARK, Saturation.FAIL_FAST, Duration.ofSeconds(10));
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            block(executor, latch);
+            executor.execute(() -> {});
+            executor.execute(() -> {});
+
+            final long time = System.nanoTime();
+            try {
+                executor.execute(() -> {});
+                fail("Rejected execution exception not thrown");
+            } catch (RejectedExecutionException exception) {
+                /* Expected, straight away */
+                assertTrue(System.nanoTime() - time < TimeUnit.SECONDS.toNanos(1), "Not rejected immediately");
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS), "Not terminated");
+    }
+
+    @Test
+    public void testCallerRuns()
+    throws Exception {
+        final RingBufferExecutor executor = ring(2, WaitStrategy.PARK, Saturation.CALLER_RUNS, Duration.ZERO);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            block(executor, latch);
+            executor.execute(() -> {});
+            executor.execute(() -> {});
+
+            final Thread[] thread = new Thread[1];
+            executor.execute(() -> thread[0] = Thread.currentThread());
+            assertSame(thread[0], Thread.currentThread(), "Not executed by the caller");
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS), "Not terminated");
+    }
+
+    @Test
+    public void testBlock()
+    throws Exception {
+        final RingBufferExecutor executor = ring(2, WaitStrategy.PARK, Saturation.BLOCK, Duration.ofMillis(200));
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            block(executor, latch);
+            executor.execute(() -> {});
+            executor.execute(() -> {});
+
+            /* Waits for a while, then gives up */
+            final long time = System.nanoTime();
+            try {
+                executor.execute(() -> {});
+                fail("Rejected execution exception not thrown");
+            } catch (RejectedExecutionException exception) {
+                assertTrue(System.nanoTime() - time >= TimeUnit.MILLISECONDS.toNanos(200), "Not blocked");
+            }
+
+            /* Slots freed while waiting are taken */
+            final CountDownLatch executed = new CountDownLatch(1);
+            new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException exception) {
+                    /* Ignore */
+                }
+                latch.countDown();
+            }).start();
+            executor.execute(() -> executed.countDown());
+            assertTrue(executed.await(1, TimeUnit.SECONDS), "Not executed");
+        } finally {
+            latch.countDown();
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS), "Not terminated");
+    }
+
+    @Test
+    public void testShutdownNow()
+    throws Exception {
+        final RingBufferExecutor executor = ring(4, WaitStrategy.PARK, Saturation.FAIL_FAST, Duration.ZERO);
+        final CountDownLatch latch = new CountDownLatch(1);
+        block(executor, latch);
+
+        final FutureTask<?> task = new FutureTask<>(() -> {}, null);
+        executor.execute(task);
+
+        /* Drained tasks are never run, so they are cancelled */
+        final List<Runnable> drained = executor.shutdownNow();
+        assertEquals(drained.size(), 1, "Wrong number of drained tasks");
+        assertSame(drained.get(0), task, "Wrong drained task");
+        assertTrue(((Future<?>) drained.get(0)).isCancelled(), "Drained task not cancelled");
+
+        latch.countDown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS), "Not terminated");
+    }
+
+    @Test
+    public void testShutdown()
+    throws Exception {
+        final RingBufferExecutor executor = ring(16, WaitStrategy.PARK, Saturation.FAIL_FAST, Duration.ZERO);
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger executed = new AtomicInteger();
+        executor.execute(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        for (int x = 0; x < 5; x ++) executor.execute(() -> executed.incrementAndGet());
+
+        /* Queued tasks are still executed on shutdown, new ones rejected */
+        executor.shutdown();
+        assertTrue(executor.isShutdown(), "Not shut down");
+        try {
+            executor.execute(() -> {});
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+
+        latch.countDown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS), "Not terminated");
+        assertTrue(executor.isTerminated(), "Not terminated");
+        assertEquals(executed.get(), 5, "Wrong number of executions");
+    }
+
+}
@@ -0,0 +1,955 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.utils.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SimpleExecutorTest extends AbstractTest {
+
+    @Test
+    public void testCall()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.NOTIFIER_THREADS, 1)
+                        .build());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch notified = new CountDownLatch(2);
+        final NotifyingFuture<String> future = executor.call(() -> {
+            latch.await();
+            return "foo";
+        }).withConsumer((f) -> notified.countDown());
+
+        assertFalse(future.isDone(), "Future done");
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("Timeout exception not thrown");
+        } catch (TimeoutException exception) {
+            /* Expected */
+        }
+
+        latch.countDown();
+        assertEquals(future.get(), "foo", "Wrong result");
+        assertTrue(future.isDone(), "Future not done");
+        assertFalse(future.isCancelled(), "Future cancelled");
+
+        future.withConsumer((f) -> notified.countDown());
+        assertTrue(notified.await(1, TimeUnit.SECONDS), "Consumers not notified");
+    }
+
+    @Test
+    public void testCallFailure()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+        final IllegalStateException failure = new IllegalStateException("Failed");
+        final NotifyingFuture<String> future = executor.call(() -> { throw failure; });
+
+        try {
+            future.get();
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertSame(exception.getCause(), failure, "Wrong cause");
+        }
+        assertTrue(future.isDone(), "Future not done");
+    }
+
+    @Test
+    public void testCallCancel()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final NotifyingFuture<String> future = executor.call(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException exception) {
+                interrupted.countDown();
+            }
+            return "foo";
+        });
+
+        assertTrue(started.await(1, TimeUnit.SECONDS), "Task not started");
+        assertTrue(future.cancel(true), "Future not cancelled");
+        assertFalse(future.cancel(true), "Future cancelled twice");
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS), "Task not interrupted");
+        assertTrue(future.isCancelled(), "Future not cancelled");
+        assertTrue(future.isDone(), "Future not done");
+
+        try {
+            future.get();
+            fail("Cancellation exception not thrown");
+        } catch (CancellationException exception) {
+            /* Expected */
+        }
+    }
+
+    @Test
+    public void testCallCancelInterruptCleared()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+
+        /* The task ignores the interrupt: it must not outlive its run */
+        final AtomicReference<NotifyingFuture<?>> self = new AtomicReference<>();
+        final SimpleFuture<?> future = executor.prepare(SimpleExecutor.NORMAL_PRIORITY, () -> self.get().cancel(true));
+        self.set(future);
+
+        future.run();
+        assertTrue(future.isCancelled(), "Future not cancelled");
+        assertFalse(Thread.interrupted(), "Interrupt leaked out of the task");
+
+        /* Cancelled before running, never runs */
+        final AtomicInteger executed = new AtomicInteger();
+        final SimpleFuture<?> cancelled = executor.prepare(SimpleExecutor.NORMAL_PRIORITY, () -> executed.incrementAndGet());
+        cancelled.cancel(true);
+        cancelled.run();
+        assertEquals(executed.get(), 0, "Cancelled task executed");
+        assertFalse(Thread.interrupted(), "Interrupt delivered to an idle thread");
+    }
+
+    @Test
+    public void testGetTimeoutUnlinks()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+        final CountDownLatch latch = new CountDownLatch(1);
+        final NotifyingFuture<String> future = executor.call(() -> {
+            latch.await();
+            return "foo";
+        });
+
+        /* Polling leaves no waiters behind */
+        for (int x = 0; x < 1000; x ++) try {
+            future.get(1, TimeUnit.MICROSECONDS);
+            fail("Timeout exception not thrown");
+        } catch (TimeoutException exception) {
+            /* Expected */
+        }
+        assertEquals(listeners(future), 0, "Waiters left in the stack");
+
+        latch.countDown();
+        assertEquals(future.get(1, TimeUnit.SECONDS), "foo");
+    }
+
+    /* Count the nodes in the listeners stack of a future */
+    private static int listeners(NotifyingFuture<?> future)
+    throws Exception {
+        final Field listeners = AbstractNotifyingFuture.class.getDeclaredField("listeners");
+        listeners.setAccessible(true);
+        Object node = listeners.get(future);
+
+        int count = 0;
+        while (node != null) {
+            final Field next = node.getClass().getDeclaredField("next");
+            next.setAccessible(true);
+            node = next.get(node);
+            count ++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testVirtualThreads()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Virtual")
+                        .put(SimpleExecutorProvider.VIRTUAL_THREADS, true)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 2)
+                        .build());
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        final List<NotifyingFuture<Integer>> futures = new ArrayList<>();
+        for (int x = 0; x < 10; x ++) {
+            final int y = x;
+            futures.add(executor.call(() -> {
+                maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(10);
+                running.decrementAndGet();
+                return y;
+            }));
+        }
+
+        for (int x = 0; x < 10; x ++) {
+            assertEquals(futures.get(x).get(), Integer.valueOf(x), "Wrong result");
+        }
+        assertTrue(maximum.get() <= 2, "Concurrency limit exceeded: " + maximum.get());
+
+        /* Without virtual threads, no more platform threads than the limit */
+        int threads = 0;
+        for (Thread thread: Thread.getAllStackTraces().keySet()) if (thread.getName().startsWith("Virtual-")) threads ++;
+        assertTrue(threads <= 2, "Too many platform threads: " + threads);
+    }
+
+    @Test
+    public void testCallAll()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                        .build());
+
+        final List<Callable<Integer>> callables = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) {
+            final int y = x;
+            callables.add(() -> y * 2);
+        }
+
+        final List<Integer> results = executor.callAll(callables).get(1, TimeUnit.SECONDS);
+        assertEquals(results.size(), 100, "Wrong number of results");
+        for (int x = 0; x < 100; x ++) assertEquals(results.get(x), Integer.valueOf(x * 2), "Wrong result");
+
+        assertEquals(executor.callAll(Collections.<Callable<Integer>>emptyList()).get(), Collections.emptyList(), "Wrong results");
+    }
+
+    @Test
+    public void testCallAllFailures()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+        final AtomicInteger executed = new AtomicInteger();
+        final IllegalStateException first = new IllegalStateException("First");
+        final IllegalStateException second = new IllegalStateException("Second");
+        final List<Callable<Integer>> callables = Arrays.asList(
+                () -> executed.incrementAndGet(),
+                () -> { executed.incrementAndGet(); throw first; },
+                () -> executed.incrementAndGet(),
+                () -> { executed.incrementAndGet(); throw second; });
+
+        try {
+            executor.callAll(callables, true).get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertSame(exception.getCause(), first, "Wrong failure");
+        }
+        assertEquals(executed.get(), 2, "Wrong number of executed tasks");
+
+        executed.set(0);
+        try {
+            executor.callAll(callables, false).get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            final Throwable cause = exception.getCause();
+            assertTrue(cause instanceof BatchException, "Wrong failure " + cause);
+            assertEquals(((BatchException) cause).getFailedTasks(), 2, "Wrong number of failed tasks");
+            assertSame(cause.getCause(), first, "Wrong failure");
+            assertEquals(Arrays.asList(cause.getSuppressed()), Arrays.asList(second), "Wrong suppressed failures");
+            assertEquals(first.getSuppressed().length, 0, "Caller exception modified");
+        }
+        assertEquals(executed.get(), 4, "Wrong number of executed tasks");
+
+        /* The same instance thrown more than once */
+        final List<Callable<Integer>> shared = Arrays.asList(
+                () -> { throw first; },
+                () -> { throw first; });
+        try {
+            executor.callAll(shared, false).get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertSame(exception.getCause().getCause(), first, "Wrong failure");
+            assertEquals(Arrays.asList(exception.getCause().getSuppressed()), Arrays.asList(first), "Wrong suppressed failures");
+        }
+    }
+
+    @Test
+    public void testMetrics()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Metrics")
+                        .put(SimpleExecutorProvider.JMX_METRICS, true)
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.QUEUE_SIZE, 1)
+                        .build());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final NotifyingFuture<?> blocked = executor.run(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        final NotifyingFuture<?> failing = executor.run(() -> { throw new IllegalStateException(); });
+        try {
+            executor.run(() -> {});
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+
+        final ExecutorMetrics.Snapshot queued = executor.getMetrics().snapshot();
+        assertEquals(queued.getQueueSize(), 1, "Wrong queue size");
+        assertEquals(queued.getRejectedTasks(), 1, "Wrong number of rejected tasks");
+
+        latch.countDown();
+        blocked.get();
+        try {
+            failing.get();
+        } catch (ExecutionException exception) {
+            /* Expected */
+        }
+
+        final ExecutorMetrics.Snapshot snapshot = executor.getMetrics().snapshot();
+        assertEquals(snapshot.getSubmittedTasks(), 2, "Wrong number of submitted tasks");
+        assertEquals(snapshot.getCompletedTasks(), 1, "Wrong number of completed tasks");
+        assertEquals(snapshot.getFailedTasks(), 1, "Wrong number of failed tasks");
+        assertEquals(snapshot.getWaitTime().getCount(), 2, "Wrong number of wait times");
+        assertEquals(snapshot.getRunTime().getCount(), 2, "Wrong number of run times");
+
+        final ObjectName name = new ObjectName("org.usrz.libs.utils.concurrent:type=SimpleExecutor,name=\"Metrics\"");
+        assertEquals(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "FailedTasks"), 1L, "Wrong JMX attribute");
+
+        /* Names are unique while registered */
+        try {
+            SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Metrics")
+                        .put(SimpleExecutorProvider.JMX_METRICS, true)
+                        .build());
+            fail("Illegal argument exception not thrown");
+        } catch (IllegalArgumentException exception) {
+            /* Expected */
+        }
+
+        SimpleExecutorProvider.unregister(executor);
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name), "Still registered");
+    }
+
+    @Test
+    public void testMetricsNotRegistered()
+    throws Exception {
+        SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Unregistered")
+                        .build());
+
+        final ObjectName name = new ObjectName("org.usrz.libs.utils.concurrent:type=SimpleExecutor,name=\"Unregistered\"");
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name), "Registered without asking");
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(histogram.snapshot().getPercentile(100), Long.MAX_VALUE, "Wrong percentile");
+
+        histogram.record(100);
+        assertEquals(histogram.snapshot().getPercentile(50), 127, "Wrong percentile");
+    }
+
+    @Test
+    public void testWorkStealing()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "WorkStealing")
+                        .put(SimpleExecutorProvider.EXECUTOR_TYPE, SimpleExecutorProvider.WORK_STEALING)
+                        .put(SimpleExecutorProvider.PARALLELISM, 4)
+                        .build());
+
+        /* Subtasks are forked from, and complete on, pool threads */
+        final NotifyingFuture<String> future = executor.call(() -> 20)
+                .thenCompose((value) -> executor.call(() -> value + 22 + "@" + Thread.currentThread().getName()));
+        assertTrue(future.get(1, TimeUnit.SECONDS).matches("^42@WorkStealing-\\d+$"), "Wrong result " + future.get());
+
+        final List<Callable<Integer>> callables = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) callables.add(() -> 1);
+        final List<Integer> results = executor.callAll(callables).get(1, TimeUnit.SECONDS);
+        assertEquals(results.stream().mapToInt(Integer::intValue).sum(), 100, "Wrong results");
+    }
+
+    @Test
+    public void testAdaptiveSizing()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Adaptive")
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 8)
+                        .put(SimpleExecutorProvider.ADAPTIVE_SIZING, true)
+                        .put(SimpleExecutorProvider.ADAPTIVE_INTERVAL, "0.05 seconds")
+                        .put(SimpleExecutorProvider.ADAPTIVE_WAIT_TIME, "0.001 seconds")
+                        .build());
+        assertEquals(executor.getMetrics().getCorePoolSize(), 1, "Wrong initial core pool size");
+
+        final List<NotifyingFuture<?>> futures = new ArrayList<>();
+        for (int x = 0; x < 200; x ++) futures.add(executor.run(() -> {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        }));
+
+        /* Tasks wait in queue, so the pool must grow while they run */
+        int largest = 1;
+        for (NotifyingFuture<?> future: futures) {
+            largest = Math.max(largest, executor.getMetrics().getCorePoolSize());
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertTrue(largest > 1, "Pool never grew");
+
+        /* Once idle, it shrinks back to its minimum */
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((executor.getMetrics().getCorePoolSize() > 1) && (System.nanoTime() < deadline)) Thread.sleep(10);
+        assertEquals(executor.getMetrics().getCorePoolSize(), 1, "Pool never shrunk");
+        assertTrue(executor.getMetrics().getPoolResizes() >= 2, "Wrong number of resizes");
+    }
+
+    @Test
+    public void testAdaptiveSizingReleased()
+    throws Exception {
+        /* The controller must not keep an abandoned executor reachable */
+        final WeakReference<ExecutorMetrics> reference = adaptive();
+        for (int x = 0; (x < 100) && (reference.get() != null); x ++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get(), "Executor metrics never collected");
+    }
+
+    private static WeakReference<ExecutorMetrics> adaptive() {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.ADAPTIVE_SIZING, true)
+                        .put(SimpleExecutorProvider.ADAPTIVE_INTERVAL, "0.01 seconds")
+                        .build());
+        return new WeakReference<>(executor.getMetrics());
+    }
+
+    private List<String> prioritized(String aging, int priority)
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.QUEUE_TYPE, SimpleExecutorProvider.PRIORITY)
+                        .put(SimpleExecutorProvider.PRIORITY_AGING, aging)
+                        .build());
+
+        /* Block our only thread, so that everything else is queued */
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.run(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+
+        final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+        final List<NotifyingFuture<?>> futures = new ArrayList<>();
+        futures.add(executor.run(() -> order.add("low1")));
+        futures.add(executor.run(() -> order.add("low2")));
+        futures.add(executor.run(priority, () -> order.add("high1")));
+        futures.add(executor.run(priority, () -> order.add("high2")));
+
+        latch.countDown();
+        for (NotifyingFuture<?> future: futures) future.get(1, TimeUnit.SECONDS);
+        return new ArrayList<>(order);
+    }
+
+    @Test
+    public void testPriority()
+    throws Exception {
+        assertEquals(prioritized("1 hour", 10), Arrays.asList("high1", "high2", "low1", "low2"), "Wrong execution order");
+    }
+
+    @Test
+    public void testPriorityExtreme()
+    throws Exception {
+        /* Aging the highest priority must not overflow */
+        assertEquals(prioritized("1 hour", 1 << 30), Arrays.asList("high1", "high2", "low1", "low2"), "Wrong execution order");
+    }
+
+    @Test
+    public void testPriorityAging()
+    throws Exception {
+        assertEquals(prioritized("0 seconds", 10), Arrays.asList("low1", "low2", "high1", "high2"), "Wrong execution order");
+    }
+
+    @Test
+    public void testPriorityQueueUnwrapped() {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(2, Duration.ofHours(1));
+        final Runnable runnable1 = () -> {};
+        final Runnable runnable2 = () -> {};
+
+        assertTrue(queue.offer(runnable1), "Task not queued");
+        assertTrue(queue.offer(runnable2), "Task not queued");
+        assertFalse(queue.offer(() -> {}), "Task queued over capacity");
+
+        /* The executor removes and drains the tasks it submitted */
+        assertTrue(queue.remove(runnable1), "Task not removed");
+        assertFalse(queue.remove(runnable1), "Task removed twice");
+
+        final List<Runnable> drained = new ArrayList<>();
+        assertEquals(queue.drainTo(drained), 1, "Wrong number of tasks drained");
+        assertEquals(drained, Collections.singletonList(runnable2), "Wrong tasks drained");
+    }
+
+    @Test
+    public void testPriorityQueueCapacity()
+    throws Exception {
+        final PriorityTaskQueue queue = new PriorityTaskQueue(10, Duration.ofHours(1));
+        final CyclicBarrier barrier = new CyclicBarrier(8);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int x = 0; x < 8; x ++) threads.add(new Thread(() -> {
+            try {
+                barrier.await();
+                for (int y = 0; y < 1000; y ++) if (queue.offer(() -> {})) queue.poll();
+                for (int y = 0; y < 10; y ++) queue.offer(() -> {});
+            } catch (Exception exception) {
+                throw new IllegalStateException(exception);
+            }
+        }));
+
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+        assertEquals(queue.size(), 10, "Wrong queue size");
+    }
+
+    /* ====================================================================== */
+
+    private SimpleExecutor saturated(String policy, CountDownLatch latch) {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.QUEUE_SIZE, 1)
+                        .put(SimpleExecutorProvider.REJECTION_POLICY, policy)
+                        .put(SimpleExecutorProvider.REJECTION_TIMEOUT, "0.1 seconds")
+                        .build());
+
+        /* Block our only thread (callers fill up the queue of one task) */
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.run(() -> {
+            try {
+                started.countDown();
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        try {
+            assertTrue(started.await(1, TimeUnit.SECONDS), "Blocking task not started");
+        } catch (InterruptedException exception) {
+            throw new IllegalStateException(exception);
+        }
+        return executor;
+    }
+
+    @Test
+    public void testRejectionCallerRuns()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.CALLER_RUNS, latch);
+        final NotifyingFuture<String> queued = executor.call(() -> "queued");
+
+        final Thread caller = Thread.currentThread();
+        final NotifyingFuture<Thread> future = executor.call(() -> Thread.currentThread());
+        assertTrue(future.isDone(), "Future not done");
+        assertSame(future.get(), caller, "Not run by the caller");
+        assertFalse(queued.isDone(), "Queued future done");
+
+        latch.countDown();
+        assertEquals(queued.get(1, TimeUnit.SECONDS), "queued");
+        assertEquals(executor.getMetrics().snapshot().getCallerRunsTasks(), 1, "Wrong number of caller runs");
+    }
+
+    @Test
+    public void testRejectionBlock()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.BLOCK, latch);
+        final NotifyingFuture<String> queued = executor.call(() -> "queued");
+
+        /* Nobody is making space: time out */
+        final long started = System.nanoTime();
+        try {
+            executor.call(() -> "rejected");
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(100), "Not blocked");
+
+        /* Make space while we are blocked */
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException exception) {
+                /* Ignore */
+            }
+            latch.countDown();
+        }).start();
+        assertEquals(executor.call(() -> "blocked").get(1, TimeUnit.SECONDS), "blocked");
+        assertEquals(queued.get(1, TimeUnit.SECONDS), "queued");
+
+        final ExecutorMetrics.Snapshot snapshot = executor.getMetrics().snapshot();
+        assertEquals(snapshot.getBlockedSubmissions(), 2, "Wrong number of blocked submissions");
+        assertEquals(snapshot.getRejectedTasks(), 1, "Wrong number of rejected tasks");
+    }
+
+    @Test
+    public void testRejectionDropOldest()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.DROP_OLDEST, latch);
+        final NotifyingFuture<String> oldest = executor.call(() -> "oldest");
+        final NotifyingFuture<String> newest = executor.call(() -> "newest");
+
+        assertTrue(oldest.isCancelled(), "Oldest future not cancelled");
+        try {
+            oldest.get();
+            fail("Cancellation exception not thrown");
+        } catch (CancellationException exception) {
+            /* Expected */
+        }
+
+        latch.countDown();
+        assertEquals(newest.get(1, TimeUnit.SECONDS), "newest");
+        assertEquals(executor.getMetrics().snapshot().getDroppedTasks(), 1, "Wrong number of dropped tasks");
+    }
+
+    @Test
+    public void testRejectionDropOldestInternal()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.DROP_OLDEST, latch);
+
+        /* The queued batch runner is never dropped (nor cancelled) */
+        final NotifyingFuture<List<Integer>> batch = executor.callAll(Arrays.asList(() -> 1, () -> 2));
+        try {
+            executor.call(() -> "rejected");
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+
+        latch.countDown();
+        assertEquals(batch.get(1, TimeUnit.SECONDS), Arrays.asList(1, 2));
+        assertEquals(executor.getMetrics().snapshot().getDroppedTasks(), 0, "Wrong number of dropped tasks");
+    }
+
+    @Test
+    public void testRejectionDropOldestPriority()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.MAXIMUM_POOL_SIZE, 1)
+                        .put(SimpleExecutorProvider.QUEUE_SIZE, 2)
+                        .put(SimpleExecutorProvider.QUEUE_TYPE, SimpleExecutorProvider.PRIORITY)
+                        .put(SimpleExecutorProvider.REJECTION_POLICY, SimpleExecutorProvider.DROP_OLDEST)
+                        .build());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.run(() -> {
+            started.countDown();
+            try {
+                latch.await();
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS), "Blocking task not started");
+
+        /* The lowest priority task is dropped, not the head of the queue */
+        final NotifyingFuture<String> high = executor.call(10, () -> "high");
+        final NotifyingFuture<String> low = executor.call(-10, () -> "low");
+        final NotifyingFuture<String> normal = executor.call(() -> "normal");
+
+        assertTrue(low.isCancelled(), "Low priority future not cancelled");
+        latch.countDown();
+        assertEquals(high.get(1, TimeUnit.SECONDS), "high");
+        assertEquals(normal.get(1, TimeUnit.SECONDS), "normal");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRejectionPolicy() {
+        SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.REJECTION_POLICY, "whatever")
+                        .build());
+    }
+
+    @Test
+    public void testDeadline()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final NotifyingFuture<String> future = executor.call(() -> {
+            try {
+                Thread.sleep(10000);
+                return "slept";
+            } catch (InterruptedException exception) {
+                interrupted.countDown();
+                throw exception;
+            }
+        }, Duration.ofMillis(50));
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof TimeoutException, "Wrong cause " + exception.getCause());
+        }
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS), "Task not interrupted");
+        Thread.sleep(10);
+        final ExecutorMetrics.Snapshot snapshot = executor.getMetrics().snapshot();
+        assertEquals(snapshot.getExpiredTasks(), 1, "Wrong number of expired tasks");
+        assertEquals(snapshot.getCompletedTasks() + snapshot.getFailedTasks(), 0, "Expired task counted again");
+
+        /* The interrupt doesn't leak to the next task on the same thread */
+        assertFalse(executor.call(() -> Thread.currentThread().isInterrupted()).get(1, TimeUnit.SECONDS), "Interrupt leaked");
+
+        /* Completing before the deadline is not affected */
+        assertEquals(executor.call(() -> "quick", Duration.ofMillis(50)).get(1, TimeUnit.SECONDS), "quick");
+        Thread.sleep(100);
+        assertEquals(executor.getMetrics().snapshot().getExpiredTasks(), 1, "Wrong number of expired tasks");
+    }
+
+    @Test
+    public void testDeadlineSlowConsumer()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        /* A consumer notified inline when the first deadline passes, blocking */
+        final NotifyingFuture<String> slow = executor.call(() -> {
+            Thread.sleep(10000);
+            return "slept";
+        }, Duration.ofMillis(20));
+        slow.withConsumer((future) -> {
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException exception) {
+                throw new IllegalStateException(exception);
+            }
+        });
+
+        /* Other deadlines must still expire on time */
+        final NotifyingFuture<String> future = executor.call(() -> {
+            Thread.sleep(10000);
+            return "slept";
+        }, Duration.ofMillis(100));
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof TimeoutException, "Wrong cause " + exception.getCause());
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testDeadlineReleased()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder().build());
+
+        /* Completed futures are removed from the timer, way before their deadline */
+        final List<WeakReference<?>> references = deadlined(executor);
+        for (int x = 0; (x < 50) && ((references.get(0).get() != null) || (references.get(1).get() != null)); x ++) {
+            Thread.sleep(20);
+            System.gc();
+        }
+        assertNull(references.get(0).get(), "Future still reachable");
+        assertNull(references.get(1).get(), "Result still reachable");
+    }
+
+    /* Out of the test method, so that no local variable keeps them reachable */
+    private static List<WeakReference<?>> deadlined(SimpleExecutor executor)
+    throws Exception {
+        final NotifyingFuture<Object> future = executor.call(() -> new Object(), Duration.ofHours(1));
+        final Object result = future.get(1, TimeUnit.SECONDS);
+        return Arrays.asList(new WeakReference<>(future), new WeakReference<>(result));
+    }
+
+    @Test
+    public void testDeadlineQueued()
+    throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final SimpleExecutor executor = saturated(SimpleExecutorProvider.BLOCK, latch);
+
+        final AtomicInteger executions = new AtomicInteger();
+        final NotifyingFuture<Integer> future = executor.call(() -> executions.incrementAndGet(), Duration.ofMillis(50), false);
+
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Execution exception not thrown");
+        } catch (ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof TimeoutException, "Wrong cause " + exception.getCause());
+        }
+
+        /* Let the queued task be picked up, it must not run */
+        latch.countDown();
+        assertEquals(executor.call(() -> "next").get(1, TimeUnit.SECONDS), "next");
+        assertEquals(executions.get(), 0, "Expired task executed");
+    }
+
+    @Test
+    public void testBatchingNotifier()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Batching")
+                        .put(SimpleExecutorProvider.CORE_POOL_SIZE, 4)
+                        .put(SimpleExecutorProvider.NOTIFIER_THREADS, 2)
+                        .put(SimpleExecutorProvider.NOTIFIER_TYPE, SimpleExecutorProvider.BATCHING)
+                        .put(SimpleExecutorProvider.NOTIFIER_ORDERED, true)
+                        .build());
+
+        final int tasks = 100, consumers = 50;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(tasks * consumers);
+        final List<List<Integer>> orders = new ArrayList<>();
+        final ConcurrentLinkedQueue<String> threads = new ConcurrentLinkedQueue<>();
+
+        for (int x = 0; x < tasks; x ++) {
+            final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            final NotifyingFuture<Integer> future = executor.call(() -> {
+                started.await();
+                return 1;
+            });
+            for (int y = 0; y < consumers; y ++) {
+                final int consumer = y;
+                future.withConsumer((f) -> {
+                    threads.add(Thread.currentThread().getName());
+                    order.add(consumer);
+                    latch.countDown();
+                });
+            }
+            orders.add(order);
+        }
+
+        started.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS), "Not all consumers notified");
+        for (List<Integer> order: orders) {
+            for (int y = 0; y < consumers; y ++) assertEquals(order.get(y).intValue(), y, "Wrong notification order");
+        }
+        for (String thread: threads) assertTrue(thread.startsWith("Batching[Notifier]-"), "Wrong notifier thread " + thread);
+    }
+
+    @Test
+    public void testBatchingNotifierKeepAlive()
+    throws Exception {
+        final BatchingNotifier notifier = new BatchingNotifier("KeepAlive", 1, Thread.NORM_PRIORITY, Duration.ofMillis(50), false);
+
+        /* Threads are started on demand, and terminate when idle */
+        for (int x = 0; x < 2; x ++) {
+            final AtomicReference<Thread> thread = new AtomicReference<>();
+            final CountDownLatch latch = new CountDownLatch(1);
+            notifier.execute(() -> {
+                thread.set(Thread.currentThread());
+                latch.countDown();
+            });
+
+            assertTrue(latch.await(1, TimeUnit.SECONDS), "Not notified");
+            assertEquals(thread.get().getName(), "KeepAlive-1", "Wrong notifier thread");
+            thread.get().join(1000);
+            assertFalse(thread.get().isAlive(), "Notifier thread still alive");
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidNotifierType() {
+        SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.NOTIFIER_TYPE, "whatever")
+                        .build());
+    }
+
+    @Test
+    public void testRing()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_NAME, "Ring")
+                        .put(SimpleExecutorProvider.EXECUTOR_TYPE, SimpleExecutorProvider.RING)
+                        .put(SimpleExecutorProvider.RING_SIZE, 16)
+                        .put(SimpleExecutorProvider.PARALLELISM, 2)
+                        .put(SimpleExecutorProvider.REJECTION_POLICY, SimpleExecutorProvider.BLOCK)
+                        .build());
+
+        final List<NotifyingFuture<String>> futures = new ArrayList<>();
+        for (int x = 0; x < 100; x ++) futures.add(executor.call(() -> Thread.currentThread().getName()));
+        for (NotifyingFuture<String> future: futures) {
+            assertTrue(future.get(1, TimeUnit.SECONDS).startsWith("Ring-"), "Wrong thread");
+        }
+
+        final ExecutorMetrics.Snapshot snapshot = executor.getMetrics().snapshot();
+        assertEquals(snapshot.getPoolSize(), 2, "Wrong pool size");
+        assertEquals(snapshot.getCompletedTasks(), 100, "Wrong number of completed tasks");
+    }
+
+    @Test
+    public void testRingSaturated()
+    throws Exception {
+        final SimpleExecutor executor = SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_TYPE, SimpleExecutorProvider.RING)
+                        .put(SimpleExecutorProvider.RING_SIZE, 2)
+                        .put(SimpleExecutorProvider.PARALLELISM, 1)
+                        .build());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.call(() -> {
+            started.countDown();
+            latch.await();
+            return null;
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS), "Not started");
+        executor.call(() -> null);
+        executor.call(() -> null);
+
+        try {
+            executor.call(() -> null);
+            fail("Rejected execution exception not thrown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected, fail fast by default */
+        } finally {
+            latch.countDown();
+        }
+        assertEquals(executor.getMetrics().snapshot().getRejectedTasks(), 1, "Wrong number of rejected tasks");
+
+        try {
+            SimpleExecutorProvider.create(new ConfigurationsBuilder()
+                        .put(SimpleExecutorProvider.EXECUTOR_TYPE, SimpleExecutorProvider.RING)
+                        .put(SimpleExecutorProvider.REJECTION_POLICY, SimpleExecutorProvider.DROP_OLDEST)
+                        .build());
+            fail("Illegal argument exception not thrown");
+        } catch (IllegalArgumentException exception) {
+            /* Expected, ring slots can not be dropped */
+        }
+    }
+
+}